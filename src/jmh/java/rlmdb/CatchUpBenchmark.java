@@ -0,0 +1,45 @@
+package rlmdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// time from a commit on the leader until a follower applied it, for a burst of transactions
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class CatchUpBenchmark {
+
+    @Param({"1", "100"})
+    int transactions;
+
+    @Param({"100"})
+    int opsPerTransaction;
+
+    private final byte[] value = ClusterState.value(100);
+
+    @Benchmark
+    public long catchUp(ClusterState state) throws Exception {
+        long position = -1;
+        for(int t = 0; t < transactions; t++) try(WriteTransaction tx = state.leader.createWriteTransaction(false)) {
+            for(int i = 0; i < opsPerTransaction; i++) state.leaderDb.put(tx, state.nextKey(), value);
+            tx.commit();
+            position = tx.getPosition();
+        }
+        if(!state.follower.awaitPosition(position, 60, TimeUnit.SECONDS))
+            throw new IllegalStateException("follower " + state.follower.getId() + " did not apply position " + position);
+        return position;
+    }
+}
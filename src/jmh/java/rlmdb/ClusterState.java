@@ -0,0 +1,58 @@
+package rlmdb;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+// a fresh 3 node LocalCluster per trial, ports from -Drlmdb.bench.port.
+// -Drlmdb.bench.journalWait sets the bookie journal group wait in ms, the bookkeeper default of 200 dominates commit latency.
+// -Drlmdb.bench.flags=NOSYNC,WRITEMAP opens the lmdb envs with those EnvFlags
+@State(Scope.Benchmark)
+public class ClusterState {
+
+    LocalCluster cluster;
+    Env leader;
+    Env follower;
+    Database leaderDb;
+    Database followerDb;
+
+    private final AtomicLong keys = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        cluster = new LocalCluster(3, Integer.getInteger("rlmdb.bench.port", 27000));
+        String journalWait = System.getProperty("rlmdb.bench.journalWait");
+        if(journalWait != null) cluster.setBookieProperty("journalMaxGroupWaitMSec", journalWait);
+        Set<EnvFlag> flags = EnumSet.noneOf(EnvFlag.class);
+        for(String flag: System.getProperty("rlmdb.bench.flags", "").split(","))
+            if(!flag.trim().isEmpty()) flags.add(EnvFlag.valueOf(flag.trim()));
+        cluster.setFlags(flags);
+        cluster.start();
+        leader = cluster.leader();
+        follower = cluster.followers().get(0);
+        leaderDb = leader.openDatabase("bench");
+        followerDb = follower.openDatabase("bench");
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        cluster.close();
+    }
+
+    byte[] nextKey() {
+        return Env.longToByteArray(keys.incrementAndGet());
+    }
+
+    static byte[] value(int size) {
+        byte[] value = new byte[size];
+        new Random(size).nextBytes(value);
+        return value;
+    }
+}
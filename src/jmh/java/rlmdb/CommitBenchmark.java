@@ -0,0 +1,55 @@
+package rlmdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// latency distribution of a one put commit on the leader and forwarded from a follower.
+// a group commit window only pays off with concurrent writers, run with -t
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class CommitBenchmark {
+
+    @Param({"0", "2"})
+    long groupCommitWindow;
+
+    private final byte[] value = ClusterState.value(100);
+
+    @Setup(Level.Trial)
+    public void setup(ClusterState state) {
+        if(groupCommitWindow > 0) state.leader.setGroupCommit(groupCommitWindow, 1 << 20, 1000);
+    }
+
+    @Benchmark
+    public long leader(ClusterState state) throws Exception {
+        return commit(state.leader, state.leaderDb, state.nextKey());
+    }
+
+    @Benchmark
+    public long forwarded(ClusterState state) throws Exception {
+        return commit(state.follower, state.followerDb, state.nextKey());
+    }
+
+    private long commit(Env env, Database db, byte[] key) throws Exception {
+        try(WriteTransaction tx = env.createWriteTransaction(false)) {
+            db.put(tx, key, value);
+            tx.commit();
+            return tx.getPosition();
+        }
+    }
+}
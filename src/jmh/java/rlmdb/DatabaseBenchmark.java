@@ -0,0 +1,53 @@
+package rlmdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// single key puts, each its own replicated transaction, and local gets over a preloaded database
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class DatabaseBenchmark {
+
+    private static final int PRELOADED = 10000;
+
+    @Param({"100", "4096"})
+    int valueSize;
+
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void preload(ClusterState state) throws Exception {
+        value = ClusterState.value(valueSize);
+        try(WriteTransaction tx = state.leader.createWriteTransaction(false)) {
+            for(long i = 0; i < PRELOADED; i++) state.leaderDb.put(tx, Env.longToByteArray(-1 - i), value);
+            tx.commit();
+        }
+    }
+
+    @Benchmark
+    public void put(ClusterState state) throws Exception {
+        state.leaderDb.put(state.nextKey(), value);
+    }
+
+    @Benchmark
+    public byte[] get(ClusterState state) {
+        return state.leaderDb.get(Env.longToByteArray(-1 - ThreadLocalRandom.current().nextInt(PRELOADED)));
+    }
+}
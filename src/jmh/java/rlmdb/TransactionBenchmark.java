@@ -0,0 +1,52 @@
+package rlmdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// write transactions of growing size committed on the leader, divide by ops for the per put cost
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class TransactionBenchmark {
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    int ops;
+
+    @Param({"100"})
+    int valueSize;
+
+    @Param({"false", "true"})
+    boolean compress;
+
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setup(ClusterState state) {
+        value = ClusterState.value(valueSize);
+        state.leader.setCompressBatches(compress);
+    }
+
+    @Benchmark
+    public long commit(ClusterState state) throws Exception {
+        try(WriteTransaction tx = state.leader.createWriteTransaction(false)) {
+            for(int i = 0; i < ops; i++) state.leaderDb.put(tx, state.nextKey(), value);
+            tx.commit();
+            return tx.getPosition();
+        }
+    }
+}
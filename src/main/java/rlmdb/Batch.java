@@ -0,0 +1,260 @@
+package rlmdb;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// ledger entry holding many operations:
+//   version(1) flags(1) [uncompressed length varint, when lz4] operations...
+// each operation being:
+//   type(1) [db id(4) key length varint, key [value length varint, value, on put and append]]
+// a drop carries the database name as its key
+class Batch {
+
+    static final byte VERSION = 0x01;
+    static final byte FLAG_LZ4 = 0x01;
+
+    static final byte DEL = 0x00;
+    static final byte PUT = 0x01;
+    static final byte TXN = 0x02;
+    static final byte APPEND = 0x03;
+    static final byte DROP = 0x04;
+
+    private static final int HEADER = 2;
+
+    private static final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private byte[] buffer;
+    private int size = HEADER;
+    private int count = 0;
+
+    Batch() {
+        this(new byte[256]);
+    }
+
+    Batch(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+    static class Op {
+        final byte type;
+        final byte[] db;
+        final byte[] key;
+        final byte[] value;
+
+        Op(byte type, byte[] db, byte[] key, byte[] value) {
+            this.type = type;
+            this.db = db;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    void put(byte[] db, byte[] key, byte[] value) {
+        put(PUT, db, key, value);
+    }
+
+    // a put of a key sorted after every key already in the database
+    void append(byte[] db, byte[] key, byte[] value) {
+        put(APPEND, db, key, value);
+    }
+
+    private void put(byte type, byte[] db, byte[] key, byte[] value) {
+        ensure(1 + db.length + 10 + key.length + value.length);
+        buffer[size++] = type;
+        write(db);
+        writeVarint(key.length);
+        write(key);
+        writeVarint(value.length);
+        write(value);
+        count++;
+    }
+
+    void put(byte[] db, ByteBuffer key, ByteBuffer value) {
+        ensure(1 + db.length + 10 + key.remaining() + value.remaining());
+        buffer[size++] = PUT;
+        write(db);
+        writeVarint(key.remaining());
+        write(key);
+        writeVarint(value.remaining());
+        write(value);
+        count++;
+    }
+
+    void delete(byte[] db, ByteBuffer key) {
+        ensure(1 + db.length + 5 + key.remaining());
+        buffer[size++] = DEL;
+        write(db);
+        writeVarint(key.remaining());
+        write(key);
+        count++;
+    }
+
+    void delete(byte[] db, byte[] key) {
+        delete(DEL, db, key);
+    }
+
+    void drop(byte[] db, byte[] name) {
+        delete(DROP, db, name);
+    }
+
+    private void delete(byte type, byte[] db, byte[] key) {
+        ensure(1 + db.length + 5 + key.length);
+        buffer[size++] = type;
+        write(db);
+        writeVarint(key.length);
+        write(key);
+        count++;
+    }
+
+    void commit() {
+        ensure(1);
+        buffer[size++] = TXN;
+        count++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int count() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    void reset() {
+        size = HEADER;
+        count = 0;
+    }
+
+    // starts over in another buffer, the current one having been handed out by seal()
+    void reset(byte[] buffer) {
+        this.buffer = buffer;
+        reset();
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    // completes the entry in place, it is the first size() bytes of buffer()
+    int seal() {
+        buffer[0] = VERSION;
+        buffer[1] = 0;
+        return size;
+    }
+
+    int maxCompressedSize() {
+        return HEADER + 5 + compressor.maxCompressedLength(size - HEADER);
+    }
+
+    // writes the compressed entry to target, of at least maxCompressedSize() bytes, and returns its length.
+    // -1 when compression does not make it smaller
+    int compress(byte[] target) {
+        int length = size - HEADER;
+        target[0] = VERSION;
+        target[1] = FLAG_LZ4;
+        int offset = writeVarint(target, HEADER, length);
+        offset += compressor.compress(buffer, HEADER, length, target, offset);
+        return offset < size ? offset : -1;
+    }
+
+    byte[] toEntry(boolean compress) {
+        if(compress) {
+            byte[] entry = new byte[maxCompressedSize()];
+            int length = compress(entry);
+            if(length >= 0) return Arrays.copyOf(entry, length);
+        }
+        return Arrays.copyOf(buffer, seal());
+    }
+
+    static List<Op> decode(byte[] entry) {
+        return decode(entry, entry.length);
+    }
+
+    // the entry being the first length bytes of a possibly larger buffer
+    static List<Op> decode(byte[] entry, int length) {
+        if(length < HEADER || entry[0] != VERSION) throw new IllegalArgumentException("unknown batch version " + (length > 0 ? entry[0] : -1));
+        byte[] data = entry;
+        int[] offset = new int[]{HEADER};
+        int end = length;
+        if((entry[1] & FLAG_LZ4) != 0) {
+            end = readVarint(entry, offset);
+            data = new byte[end];
+            decompressor.decompress(entry, offset[0], data, 0, end);
+            offset[0] = 0;
+        }
+        List<Op> ops = new ArrayList<>();
+        while(offset[0] < end) {
+            byte type = data[offset[0]++];
+            if(type == TXN) {
+                ops.add(new Op(type, null, null, null));
+                continue;
+            }
+            if(type != PUT && type != DEL && type != APPEND && type != DROP) throw new IllegalArgumentException("unknown operation " + type);
+            byte[] db = read(data, offset, 4);
+            byte[] key = read(data, offset, readVarint(data, offset));
+            byte[] value = type == PUT || type == APPEND ? read(data, offset, readVarint(data, offset)) : null;
+            ops.add(new Op(type, db, key, value));
+        }
+        return ops;
+    }
+
+    private void ensure(int extra) {
+        if(size + extra > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+    }
+
+    private void write(byte[] b) {
+        System.arraycopy(b, 0, buffer, size, b.length);
+        size += b.length;
+    }
+
+    // copies the remaining bytes leaving the buffer's position as it was
+    private void write(ByteBuffer b) {
+        int length = b.remaining();
+        if(b.hasArray()) System.arraycopy(b.array(), b.arrayOffset() + b.position(), buffer, size, length);
+        else {
+            int position = b.position();
+            b.get(buffer, size, length);
+            b.position(position);
+        }
+        size += length;
+    }
+
+    private void writeVarint(int v) {
+        size = writeVarint(buffer, size, v);
+    }
+
+    private static int writeVarint(byte[] b, int offset, int v) {
+        while((v & ~0x7f) != 0) {
+            b[offset++] = (byte)((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        b[offset++] = (byte)v;
+        return offset;
+    }
+
+    private static int readVarint(byte[] b, int[] offset) {
+        int v = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte x = b[offset[0]++];
+            v |= (x & 0x7f) << shift;
+            if((x & 0x80) == 0) return v;
+        }
+    }
+
+    private static byte[] read(byte[] b, int[] offset, int length) {
+        byte[] r = Arrays.copyOfRange(b, offset[0], offset[0] + length);
+        offset[0] += length;
+        return r;
+    }
+}
@@ -0,0 +1,41 @@
+package rlmdb;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// batch buffers shared by the write transactions of an env. a buffer handed to bookkeeper comes back once its add
+// is acknowledged, which with ack quorum equal to write quorum means every bookie has received it
+class BufferPool {
+
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int max;
+    private volatile int maxLength;
+
+    BufferPool(int max, int maxLength) {
+        this.max = max;
+        this.maxLength = maxLength;
+    }
+
+    void setMaxLength(int length) {
+        maxLength = length;
+    }
+
+    byte[] acquire(int length) {
+        byte[] b = free.poll();
+        if(b == null) return new byte[length];
+        size.decrementAndGet();
+        // too small after a batch size change, let it go
+        return b.length >= length ? b : new byte[length];
+    }
+
+    void release(byte[] b) {
+        if(b.length > maxLength) return;
+        if(size.incrementAndGet() > max) {
+            size.decrementAndGet();
+            return;
+        }
+        free.offer(b);
+    }
+}
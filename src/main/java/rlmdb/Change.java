@@ -0,0 +1,49 @@
+package rlmdb;
+
+// one operation of a committed transaction. every operation of a log record shares its ledger id and position
+public class Change {
+
+    public enum Type { PUT, DELETE, DROP }
+
+    private final Type type;
+    private final String database;
+    private final byte[] key;
+    private final byte[] value;
+    private final long ledgerId;
+    private final long position;
+
+    Change(Type type, String database, byte[] key, byte[] value, long ledgerId, long position) {
+        this.type = type;
+        this.database = database;
+        this.key = key;
+        this.value = value;
+        this.ledgerId = ledgerId;
+        this.position = position;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getDatabase() {
+        return database;
+    }
+
+    // null on drops
+    public byte[] getKey() {
+        return key;
+    }
+
+    // null on deletes and drops
+    public byte[] getValue() {
+        return value;
+    }
+
+    public long getLedgerId() {
+        return ledgerId;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+}
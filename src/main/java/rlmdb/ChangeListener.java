@@ -0,0 +1,8 @@
+package rlmdb;
+
+public interface ChangeListener {
+
+    // called in log order from the subscription's thread, the log is not read further until it returns.
+    // throwing ends the subscription, which can be resumed from its last delivered position
+    void onChange(Change change) throws Exception;
+}
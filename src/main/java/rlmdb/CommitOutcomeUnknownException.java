@@ -0,0 +1,9 @@
+package rlmdb;
+
+// a commit that may or may not have gone through. retrying it may apply it twice
+public class CommitOutcomeUnknownException extends RuntimeException {
+
+    public CommitOutcomeUnknownException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
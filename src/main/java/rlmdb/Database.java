@@ -1,60 +1,186 @@
 package rlmdb;
 
-import com.google.common.hash.Hashing;
-import com.google.common.primitives.Bytes;
-import org.apache.bookkeeper.client.BKException;
+import com.google.common.primitives.Ints;
+import org.apache.log4j.Logger;
+import org.fusesource.lmdbjni.BufferCursor;
+import org.fusesource.lmdbjni.DirectBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 import static org.fusesource.lmdbjni.Constants.bytes;
 
 public class Database {
 
+    private static final Logger logger = Logger.getLogger(Database.class);
+
     private final Env env;
     private final byte[] id;
     private final String name;
     private final org.fusesource.lmdbjni.Database db;
-    private final byte[] OPERATION_PUT;
-    private final byte[] OPERATION_DEL;
 
-    Database(String name, Env env) {
-        id = Hashing.crc32c().hashBytes(bytes(name)).asBytes();
+    private static final int MAX_KEY_SIZE = 511;
+
+    // off-heap key scratch space and a value view per thread so visited reads allocate nothing
+    private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private static class Buffers {
+        final ByteBuffer keyMemory = ByteBuffer.allocateDirect(MAX_KEY_SIZE);
+        final long keyAddress = new DirectBuffer(keyMemory).addressOffset();
+        final DirectBuffer key = new DirectBuffer();
+        final DirectBuffer value = new DirectBuffer();
+
+        DirectBuffer key(byte[] k) {
+            if(k.length > MAX_KEY_SIZE) throw new IllegalArgumentException("key longer than " + MAX_KEY_SIZE + " bytes");
+            key.wrap(keyAddress, k.length);
+            key.putBytes(0, k);
+            return key;
+        }
+    }
+
+    Database(String name, int id, Env env, org.fusesource.lmdbjni.Database db) {
+        this.id = Ints.toByteArray(id);
         this.name = name;
         this.env = env;
-        db = env.env.openDatabase(name);
-        OPERATION_PUT = Bytes.concat(id, new byte[]{0x01});
-        OPERATION_DEL = Bytes.concat(id, new byte[]{0x00});
+        this.db = db;
+    }
+
+    // the shared dbi handle, as long as this database was not dropped or closed. lmdb hands the dbi of a dropped
+    // database out again, a stale handle would read another one
+    private org.fusesource.lmdbjni.Database db() {
+        if(env.handle(Ints.fromByteArray(id)) != db) throw new IllegalStateException("database " + name + " was dropped or closed");
+        return db;
     }
 
     public byte[] get(byte[] key) {
-        return db.get(key);
+        long start = System.nanoTime();
+        byte[] value = get(db(), key);
+        env.metrics.read.record(System.nanoTime() - start);
+        return value;
+    }
+
+    private byte[] get(org.fusesource.lmdbjni.Database db, byte[] key) {
+        env.enterMap();
+        try {
+            return db.get(key);
+        } finally {
+            env.exitMap();
+        }
     }
 
     public byte[] get(ReadTransaction rtx, byte[] key) {
-        return db.get(rtx.tx, key);
+        long start = System.nanoTime();
+        byte[] value = db().get(rtx.tx, key);
+        env.metrics.read.record(System.nanoTime() - start);
+        return value;
+    }
+
+    public boolean get(ReadTransaction rtx, DirectBuffer key, DirectBuffer value) {
+        long start = System.nanoTime();
+        boolean found = db().get(rtx.tx, key, value) == 0;
+        env.metrics.read.record(System.nanoTime() - start);
+        return found;
+    }
+
+    // the visitor's time is not part of the read latency
+    public <T> T get(ReadTransaction rtx, byte[] key, ValueVisitor<T> visitor) {
+        Buffers b = buffers.get();
+        long start = System.nanoTime();
+        boolean found = db().get(rtx.tx, b.key(key), b.value) == 0;
+        env.metrics.read.record(System.nanoTime() - start);
+        return found ? visitor.visit(b.value) : null;
+    }
+
+    // waits until this replica is as up to date as asked and reads from a snapshot taken afterwards.
+    // reads through a transaction of the caller's wait with Env.await before opening it
+    public byte[] get(byte[] key, ReadConsistency consistency) throws InterruptedException {
+        if(!consistency.isLocal()) env.await(consistency);
+        return get(key);
+    }
+
+    public BufferCursor bufferCursor(ReadTransaction rtx) {
+        return db().bufferCursor(rtx.tx);
+    }
+
+    public Scan scan(ReadTransaction rtx, byte[] from, byte[] to) {
+        return scan(rtx, from, to, false, false);
+    }
+
+    public Scan scan(ReadTransaction rtx, byte[] from, byte[] to, boolean reverse, boolean keysOnly) {
+        return new Scan(db().bufferCursor(rtx.tx), from, to, reverse, keysOnly);
+    }
+
+    public Scan prefix(ReadTransaction rtx, byte[] prefix) {
+        return prefix(rtx, prefix, false, false);
+    }
+
+    public Scan prefix(ReadTransaction rtx, byte[] prefix, boolean reverse, boolean keysOnly) {
+        return scan(rtx, prefix, Scan.successor(prefix), reverse, keysOnly);
+    }
+
+    public byte[] get(WriteTransaction tx, byte[] key) {
+        byte[] value = tx.get(id, key);
+        if(value == WriteTransaction.TOMBSTONE) return null;
+        return value != null ? value : get(db(), key);
     }
 
     public void put(WriteTransaction tx, byte[] key, byte[] value) throws Exception {
-        tx.add(Bytes.concat(OPERATION_PUT, new byte[]{(byte)key.length}, key, value));
+        db();
+        tx.put(id, key, value);
+    }
+
+    public void put(WriteTransaction tx, ByteBuffer key, ByteBuffer value) throws Exception {
+        db();
+        tx.put(id, key, value);
     }
 
     public void put(byte[] key, byte[] value) throws Exception {
-        try(WriteTransaction tx = env.createWriteTransaction()) {
+        try(WriteTransaction tx = env.createWriteTransaction(false)) {
             put(tx, key, value);
+            tx.commit();
         }
     }
 
     public void delete(WriteTransaction tx, byte[] key) throws Exception {
-        tx.add(Bytes.concat(OPERATION_DEL, new byte[]{(byte)key.length}, key));
+        db();
+        tx.delete(id, key);
+    }
+
+    public void delete(WriteTransaction tx, ByteBuffer key) throws Exception {
+        db();
+        tx.delete(id, key);
     }
 
     public void delete(byte[] key) throws Exception {
-        try(WriteTransaction tx = env.createWriteTransaction()) {
+        try(WriteTransaction tx = env.createWriteTransaction(false)) {
             delete(tx, key);
+            tx.commit();
         }
     }
 
+    // logged like any write so every replica drops it in log order, the leader included. waits for the local drop
     public void drop() {
-        db.drop(true);
-        env.dropDatabase(id);
+        db();
+        long position;
+        try(WriteTransaction tx = new WriteTransaction(env, true, false)) {
+            tx.drop(id, bytes(name));
+            tx.commit();
+            position = tx.getPosition();
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        env.dropDatabase(Ints.fromByteArray(id), name);
+        try {
+            if(!env.awaitPosition(position, 2 * env.getReplayPollInterval(), TimeUnit.MILLISECONDS))
+                logger.warn("drop of " + name + " logged at position " + position + " not applied locally yet");
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     public byte[] getId() {
@@ -65,7 +191,8 @@ public class Database {
         return name;
     }
 
+    // closes the dbi handle shared by every instance of this database in the env
     public void close() {
-        db.close();
+        if(env.forget(Ints.fromByteArray(id), db)) db.close();
     }
 }
@@ -1,12 +1,19 @@
 package rlmdb;
 
-import com.google.common.hash.Hashing;
+import com.google.common.collect.Lists;
 import com.google.common.io.BaseEncoding;
 import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.bookkeeper.bookie.BookieException;
+import org.apache.bookkeeper.client.AsyncCallback;
 import org.apache.bookkeeper.client.BKException;
 import org.apache.bookkeeper.client.BookKeeper;
-import org.apache.bookkeeper.client.LedgerEntry;
 import org.apache.bookkeeper.client.LedgerHandle;
 import org.apache.bookkeeper.conf.ClientConfiguration;
 import org.apache.bookkeeper.conf.ServerConfiguration;
@@ -18,18 +25,31 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
+import org.apache.curator.framework.api.transaction.OperationType;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
 import org.apache.curator.framework.recipes.leader.CancelLeadershipException;
 import org.apache.curator.framework.recipes.leader.LeaderSelector;
 import org.apache.curator.framework.recipes.leader.LeaderSelectorListener;
+import org.apache.curator.framework.recipes.leader.Participant;
 import org.apache.curator.framework.state.ConnectionState;
-import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.retry.BoundedExponentialBackoffRetry;
 import org.apache.curator.utils.ZKPaths;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.jmx.ManagedUtil;
 import org.apache.zookeeper.server.ServerCnxnFactory;
@@ -38,6 +58,7 @@ import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.quorum.QuorumPeer;
 import org.apache.zookeeper.server.quorum.QuorumPeerConfig;
 import org.fusesource.lmdbjni.Constants;
+import org.fusesource.lmdbjni.LMDBException;
 
 import javax.management.JMException;
 import java.io.File;
@@ -45,42 +66,143 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.fusesource.lmdbjni.Constants.bytes;
+import static org.fusesource.lmdbjni.Constants.string;
 
 public class Env implements LeaderSelectorListener {
 
     private static final Logger logger = Logger.getLogger(Env.class);
 
     private static final String ZKPATH = "/rlmdb";
-    private static final String DB_NAME_MAP_PATH = ZKPATH + "/dbmap";
+    static final String DB_NAME_MAP_PATH = ZKPATH + "/dbmap";
+    static final String DB_ID_PATH = ZKPATH + "/dbid";
     private static final String ELECTION_PATH = ZKPATH + "/election";
-    private static final String LOG_LIST_PATH = ZKPATH + "/log";
-    private static final String LOG_REMOVED_PATH = LOG_LIST_PATH + "/removed";
-
-    private static QuorumPeer quorumPeer;
-    private static QuorumPeerConfig quorumPeerConfig;
-    private static ServerCnxnFactory cnxnFactory;
-
-    private static ServerConfiguration bookieConfig;
-    private static BookieServer bookie;
-    private static CuratorFramework curator;
-
-    private static LeaderSelector leaderSelector;
-
-    private static BookKeeper bookkeeper;
+    static final String LOG_LIST_PATH = ZKPATH + "/log";
+    static final String LOG_REMOVED_PATH = LOG_LIST_PATH + "/removed";
+    static final String LOG_INDEX_PATH = LOG_LIST_PATH + "/segments";
+    static final String LOG_POSITION_PATH = LOG_LIST_PATH + "/position";
+    static final String LOG_TRUNCATED_PATH = LOG_LIST_PATH + "/truncated";
+    private static final String SNAPSHOT_PATH = ZKPATH + "/snapshot";
+    private static final String EPOCH_PATH = ZKPATH + "/epoch";
+    private static final String INFLIGHT_PATH = ZKPATH + "/inflight";
+
+    // local bookkeeping kept in the env itself, next to the data it describes
+    static final String META_DATABASE = "__rlmdb_meta__";
+    private static final byte[] BULK_KEY = bytes("bulk");
+    private static final byte[] APPLIED_KEY = bytes("applied");
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    private QuorumPeer quorumPeer;
+    private QuorumPeerConfig quorumPeerConfig;
+    private ServerCnxnFactory cnxnFactory;
+
+    private ServerConfiguration bookieConfig;
+    private BookieServer bookie;
+    CuratorFramework curator;
+
+    private LeaderSelector leaderSelector;
+    // held while takeLeadership runs
+    private final ReentrantLock leadership = new ReentrantLock();
+
+    volatile BookKeeper bookkeeper;
+    private ClientConfiguration bookkeeperConfig;
+    private ZooKeeper bookkeeperZooKeeper;
 
     private final long myid;
 
     private volatile boolean leader = false;
-
-    private final String lastProcessedLedgerPath;
-
-    static final org.fusesource.lmdbjni.Env env = new org.fusesource.lmdbjni.Env();
+    private volatile long epoch = -1;
+    private volatile int epochVersion = -1;
+
+    final String lastProcessedLedgerPath;
+
+    private Replayer replayer;
+
+    final Object applyLock = new Object();
+    volatile long appliedPosition = -1;
+    private long lastCommittedPosition = -1;
+    private int positionVersion = -1;
+    // dbi handles indexed by database id, ids being handed out sequentially by the registry
+    private volatile org.fusesource.lmdbjni.Database[] databases = new org.fusesource.lmdbjni.Database[16];
+    // the name each handle was opened under. lmdb hands out one dbi per name, so the ids of a name recreated after
+    // a drop share the dbi until that drop is applied. guarded by this
+    private final Map<Integer, String> handleNames = new HashMap<>();
+    private final ConcurrentMap<Integer, String> databaseNames = new ConcurrentHashMap<>();
+    // ids are never handed out again, so a dropped one stays unknown for good
+    private final Set<Integer> droppedIds = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private PathChildrenCache databaseRegistry;
+    private org.fusesource.lmdbjni.Database meta;
+    private final Set<Subscription> subscriptions = Collections.newSetFromMap(new ConcurrentHashMap<Subscription, Boolean>());
+    private final AtomicLong subscriptionIds = new AtomicLong();
+
+    private final ThreadLocal<ReadTransaction> readPool = new ThreadLocal<>();
+    private final Set<ReadTransaction> pooledReads = Collections.newSetFromMap(new ConcurrentHashMap<ReadTransaction, Boolean>());
+    private final AtomicLong readPoolHits = new AtomicLong();
+    private final AtomicLong readPoolMisses = new AtomicLong();
+    volatile GroupCommitter groupCommitter;
+    final Metrics metrics = new Metrics(this);
+    Forwarder forwarder;
+    private ForwardingServer forwardingServer;
+    private String forwardingHost;
+    private int forwardingPort = -1;
+    private int maxPendingAdds = 1024;
+    private long commitTimeout = 60000;
+    private int batchSize = 64 * 1024;
+    // a batch grows past its buffer by its last operation, buffers grown further by large values are let go
+    final BufferPool buffers = new BufferPool(256, 2 * batchSize);
+    private boolean compressBatches = false;
+    private long bulkApplyChunkSize = 64 * 1024 * 1024;
+
+    final ListeningExecutorService commitExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("rlmdb-commit-%d").setDaemon(true).build()));
+    private long replayPollInterval = 30000;
+    private long logCompactionInterval = 60000;
+    private int replayPrefetch = 8;
+    private long replayPrefetchBytes = 64 * 1024 * 1024;
+    private double mapGrowthFactor = 2;
+    private long maxMapSize = Long.MAX_VALUE;
+    private long syncInterval = 1000;
+    private String autoSnapshotDir;
+    private long autoSnapshotInterval;
+    private int snapshotsKept = 2;
+    private boolean relaxedSync = false;
+    private volatile long syncedPosition = -1;
+    private ScheduledExecutorService syncer;
+
+    // lmdb unmaps and maps the file again on a resize, so reads and dbi opens are counted and hold off a growing map
+    private final AtomicInteger mapReaders = new AtomicInteger();
+    private volatile boolean mapResizing = false;
+
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    final org.fusesource.lmdbjni.Env env = new org.fusesource.lmdbjni.Env();
 
     public Env(long myid) {
         this.myid = myid;
@@ -95,28 +217,234 @@ public class Env implements LeaderSelectorListener {
         open(path, flags, 0644, zk, bk);
     }
 
+    public void open(String path, Set<EnvFlag> flags, Properties zk, Properties bk) throws InterruptedException, BookieException, KeeperException, IOException, ReplicationException.CompatibilityException, QuorumPeerConfig.ConfigException, ConfigurationException, ReplicationException.UnavailableException {
+        open(path, EnvFlag.value(flags), 0644, zk, bk);
+    }
+
     public void open(String path, int flags, int mode, Properties zk, Properties bk) throws IOException, QuorumPeerConfig.ConfigException, InterruptedException, BookieException, KeeperException, ReplicationException.CompatibilityException, ReplicationException.UnavailableException, ConfigurationException {
-        env.open(path, flags, mode);
         startZookeeper(path, zk);
         startBookKeeper(path, bk);
+        try {
+            restore(path);
+            env.open(path, flags, mode);
+            meta = openDbi(META_DATABASE);
+            // the position recorded with the data itself wins over the published watermark, which may lag behind
+            long local = storedPosition();
+            appliedPosition = local >= 0 ? local : readPosition(lastProcessedLedgerPath);
+            syncedPosition = appliedPosition;
+        } catch(IOException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        relaxedSync = EnvFlag.relaxedSync(flags);
+        if (relaxedSync) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("rlmdb-sync-" + myid).setDaemon(true).build());
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sync();
+                    } catch (Exception e) {
+                        logger.warn("sync problem", e);
+                    }
+                }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+        watchDatabaseRegistry();
+        replayer = new Replayer(this);
+        replayer.start();
+        if (forwardingPort >= 0) {
+            // followers find the leader's forwarding endpoint through its election participant id
+            leaderSelector.setId(forwardingHost + ":" + forwardingPort);
+            forwardingServer = new ForwardingServer(this, forwardingHost, forwardingPort);
+            forwardingServer.start();
+            forwarder = new Forwarder(this);
+        }
+        leaderSelector.start();
+    }
+
+    // a node without local data or behind the truncated part of the log starts from the last published snapshot
+    private void restore(String path) throws Exception {
+        File data = new File(path, "data.mdb");
+        long truncated = readPosition(LOG_TRUNCATED_PATH);
+        long applied = data.exists() ? readPosition(lastProcessedLedgerPath) : -1;
+        if (!data.exists()) curator.setData().forPath(lastProcessedLedgerPath, new byte[]{});
+        if (applied >= truncated) return;
+
+        byte[] snapshot = curator.getData().forPath(SNAPSHOT_PATH);
+        long position = snapshot.length == 0 ? -1 : byteArrayToLong(snapshot);
+        if (position < truncated)
+            throw new IllegalStateException("the log is truncated up to position " + truncated + " and no snapshot covers it");
+
+        File from = new File(string(Arrays.copyOfRange(snapshot, 8, snapshot.length)), "data.mdb");
+        logger.info("restoring snapshot " + from + " at position " + position);
+        FileUtils.forceMkdir(new File(path));
+        FileUtils.deleteQuietly(new File(path, "lock.mdb"));
+        FileUtils.copyFile(from, data);
+        curator.setData().forPath(lastProcessedLedgerPath, longToByteArray(position));
+    }
+
+    // compacted copy of the local env published for joining nodes at the applied position recorded inside it.
+    // the copy runs alongside applies. dir is expected to be shared with the other nodes, older copies are removed
+    public long snapshot(String dir) throws Exception {
+        File copy = new File(dir, SNAPSHOT_PREFIX + myid + "-" + System.nanoTime() + ".tmp");
+        FileUtils.forceMkdir(copy);
+        long position;
+        try {
+            enterMap();
+            try {
+                env.copyCompact(copy.getCanonicalPath());
+            } finally {
+                exitMap();
+            }
+            position = storedPosition(copy);
+        } catch (Exception e) {
+            FileUtils.deleteQuietly(copy);
+            throw e;
+        }
+        File target = new File(dir, SNAPSHOT_PREFIX + position);
+        if (target.exists()) FileUtils.deleteQuietly(copy);
+        else if (!copy.renameTo(target)) throw new IOException("could not move snapshot " + copy + " to " + target);
+        // nodes snapshotting into the same dir only ever move the published one forward
+        while (true) {
+            Stat stat = new Stat();
+            byte[] published = curator.getData().storingStatIn(stat).forPath(SNAPSHOT_PATH);
+            if (published.length > 0 && byteArrayToLong(published) >= position) break;
+            try {
+                curator.setData().withVersion(stat.getVersion()).forPath(SNAPSHOT_PATH, Bytes.concat(longToByteArray(position), bytes(target.getCanonicalPath())));
+                logger.info("published snapshot " + target + " at position " + position);
+                break;
+            } catch (KeeperException.BadVersionException e) {}
+        }
+        removeSnapshots(new File(dir), readPosition(SNAPSHOT_PATH));
+        return position;
+    }
+
+    // all but the snapshotsKept latest snapshots below the published one
+    private void removeSnapshots(File dir, long published) {
+        List<Long> positions = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files)
+            if (f.isDirectory() && f.getName().matches(SNAPSHOT_PREFIX + "\\d+")) positions.add(Long.parseLong(f.getName().substring(SNAPSHOT_PREFIX.length())));
+        Collections.sort(positions, Collections.reverseOrder());
+        for (long position : positions.subList(Math.min(snapshotsKept, positions.size()), positions.size()))
+            if (position < published) {
+                FileUtils.deleteQuietly(new File(dir, SNAPSHOT_PREFIX + position));
+                logger.info("removed snapshot at position " + position);
+            }
+    }
+
+    // the applied position recorded in the local env, -1 when none
+    private long storedPosition() {
+        enterMap();
+        try {
+            byte[] applied = meta.get(APPLIED_KEY);
+            return applied == null ? -1 : byteArrayToLong(applied);
+        } finally {
+            exitMap();
+        }
+    }
+
+    // the applied position recorded in a copy of the env
+    private static long storedPosition(File copy) throws IOException {
+        try (org.fusesource.lmdbjni.Env e = new org.fusesource.lmdbjni.Env()) {
+            e.setMaxDbs(1);
+            e.open(copy.getCanonicalPath(), Constants.RDONLY | Constants.NOLOCK);
+            try (org.fusesource.lmdbjni.Transaction tx = e.createReadTransaction()) {
+                byte[] applied = e.openDatabase(tx, META_DATABASE, 0).get(tx, APPLIED_KEY);
+                return applied == null ? -1 : byteArrayToLong(applied);
+            }
+        }
+    }
+
+    long readPosition(String path) throws Exception {
+        byte[] position = curator.getData().forPath(path);
+        return position.length == 0 ? -1 : byteArrayToLong(position);
     }
 
     public void close() {
+        // leader work such as compaction and snapshots has to end before what it uses goes away
+        if(leaderSelector != null) {
+            leaderSelector.close();
+            try {
+                if(leadership.tryLock(commitTimeout, TimeUnit.MILLISECONDS)) leadership.unlock();
+                else logger.warn("leadership did not end within " + commitTimeout + "ms");
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for(Subscription s: subscriptions) s.close();
+        if(forwardingServer != null) forwardingServer.close();
+        if(forwarder != null) forwarder.close();
+        GroupCommitter committer = groupCommitter;
+        groupCommitter = null;
+        if(committer != null)
+            for(GroupCommitter.Pending p: committer.stop()) p.done.setException(new IllegalStateException("environment closed"));
+        commitExecutor.shutdown();
+        if(replayer != null) replayer.stop();
+        if(syncer != null) {
+            syncer.shutdown();
+            try {
+                syncer.awaitTermination(10, TimeUnit.SECONDS);
+                sync();
+            } catch (Exception e) {
+                logger.warn("final sync problem", e);
+            }
+        }
+        if(databaseRegistry != null) try { databaseRegistry.close(); } catch (IOException e) { logger.warn("", e); }
         if(bookkeeper != null) try { bookkeeper.close(); } catch (Exception e) { logger.warn("",e); }
         if(curator != null) curator.close();
         if(bookie != null) bookie.shutdown();
         if(quorumPeer != null) quorumPeer.shutdown();
+        for(ReadTransaction rtx: pooledReads) rtx.tx.abort();
+        metrics.unregister();
         env.close();
     }
 
     @Override
     public void takeLeadership(CuratorFramework client) throws Exception {
+        leadership.lock();
+        try {
+            lead();
+        } finally {
+            leadership.unlock();
+        }
+    }
+
+    private void lead() throws Exception {
         synchronized (this) {
             System.out.println("becoming leader");
+            beginEpoch();
+            fenceInflightLedgers();
+            replayer.catchUp();
+            ready();
+            Stat stat = new Stat();
+            byte[] position = curator.getData().storingStatIn(stat).forPath(LOG_POSITION_PATH);
+            synchronized (applyLock) {
+                lastCommittedPosition = position.length == 0 ? -1 : byteArrayToLong(position);
+                positionVersion = stat.getVersion();
+            }
             leader = true;
             try {
-                while (true) {
-                    this.wait();
+                long snapshotted = -1;
+                long lastSnapshot = System.currentTimeMillis();
+                // a stale term steps down by interrupting this thread, checking the flag covers an interrupt swallowed by a client
+                while (leader) {
+                    this.wait(autoSnapshotDir == null ? logCompactionInterval : Math.min(logCompactionInterval, autoSnapshotInterval));
+                    if (autoSnapshotDir != null && System.currentTimeMillis() - lastSnapshot >= autoSnapshotInterval && appliedPosition > snapshotted) try {
+                        snapshotted = snapshot(autoSnapshotDir);
+                        lastSnapshot = System.currentTimeMillis();
+                    } catch (Exception e) {
+                        logger.warn("snapshot problem", e);
+                    }
+                    try {
+                        compactLog();
+                    } catch (InterruptedException ie) {
+                        throw ie;
+                    } catch (Exception e) {
+                        logger.warn("log compaction problem", e);
+                    }
                 }
             } catch (InterruptedException ie) {
                 Thread.currentThread().interrupt();
@@ -125,9 +453,18 @@ public class Env implements LeaderSelectorListener {
         }
     }
 
+    // gives up a leadership found stale: takeLeadership returns and the node queues up again, so followers stop
+    // forwarding here and another node can take over
+    private void stepDown() {
+        leader = false;
+        leaderSelector.interruptLeadership();
+    }
+
     @Override
     public void stateChanged(CuratorFramework client, ConnectionState newState) {
+        if (newState == ConnectionState.RECONNECTED) reconnectBookKeeper();
         if ( (newState == ConnectionState.SUSPENDED) || (newState == ConnectionState.LOST) ) {
+            leader = false;
             throw new CancelLeadershipException();
         }
     }
@@ -136,18 +473,369 @@ public class Env implements LeaderSelectorListener {
         return leader;
     }
 
+    public long getEpoch() {
+        return epoch;
+    }
+
+    // every leadership term bumps the epoch. commits are conditional on its version so a deposed leader cannot publish
+    private void beginEpoch() throws Exception {
+        Stat stat = new Stat();
+        byte[] current = curator.getData().storingStatIn(stat).forPath(EPOCH_PATH);
+        long next = (current.length == 0 ? 0 : byteArrayToLong(current)) + 1;
+        epochVersion = curator.setData().withVersion(stat.getVersion()).forPath(EPOCH_PATH, longToByteArray(next)).getVersion();
+        epoch = next;
+        logger.info("leading epoch " + epoch);
+    }
+
+    // recovery opens of the ledgers a previous leader left uncommitted fence its pending writes, then they are dropped
+    private void fenceInflightLedgers() throws Exception {
+        for (String child : curator.getChildren().forPath(INFLIGHT_PATH)) {
+            long ledgerId = Long.parseLong(child, 16);
+            try {
+                try {
+                    bookkeeper.openLedger(ledgerId, BookKeeper.DigestType.MAC, new byte[]{0x00}).close();
+                } catch (BKException.BKLedgerRecoveryException e) {
+                    // writing the recovered tail back needs a bookie to replace a dead one. the bumped epoch already keeps it from being published
+                    logger.warn("could not recover uncommitted ledger " + ledgerId, e);
+                }
+                bookkeeper.deleteLedger(ledgerId);
+            } catch (BKException.BKNoSuchLedgerExistsException e) {}
+            try { curator.delete().forPath(INFLIGHT_PATH + "/" + child); } catch (KeeperException.NoNodeException e) {}
+            logger.info("fenced uncommitted ledger " + ledgerId);
+        }
+    }
+
+    public long getId() {
+        return myid;
+    }
+
 
     public void setMapSize(long size) {
         env.setMapSize(size);
     }
 
+    // a full map is grown by factor up to maxSize, 0 turns growth off. set before or after open
+    public void setMapGrowth(double factor, long maxSize) {
+        mapGrowthFactor = factor;
+        maxMapSize = maxSize;
+    }
+
+    // how often a relaxed sync env flushes lmdb and moves its applied watermark, set before open
+    public void setSyncInterval(long millis) {
+        syncInterval = millis;
+    }
+
     public void setMaxDbs(long size) {
         env.setMaxDbs(size);
     }
 
+    public void setReplayPollInterval(long millis) {
+        replayPollInterval = millis;
+    }
+
+    public long getReplayPollInterval() {
+        return replayPollInterval;
+    }
+
+    // ledgers fetched ahead of the one being applied, bounded in count and buffered bytes
+    public void setReplayPrefetch(int ledgers, long bytes) {
+        replayPrefetch = ledgers;
+        replayPrefetchBytes = bytes;
+    }
+
+    public int getReplayPrefetch() {
+        return replayPrefetch;
+    }
+
+    public long getReplayPrefetchBytes() {
+        return replayPrefetchBytes;
+    }
+
+    public void setLogCompactionInterval(long millis) {
+        logCompactionInterval = millis;
+    }
+
+    // the leader snapshots into dir about every interval while the log moves on, null turns it off
+    public void setAutoSnapshot(String dir, long intervalMillis) {
+        autoSnapshotDir = dir;
+        autoSnapshotInterval = intervalMillis;
+    }
+
+    // snapshots kept in the snapshot dir besides the published one
+    public void setSnapshotsKept(int count) {
+        snapshotsKept = count;
+    }
+
+    // entries a write transaction may have in flight to the bookies before add() blocks
+    public void setMaxPendingAdds(int max) {
+        maxPendingAdds = max;
+    }
+
+    public int getMaxPendingAdds() {
+        return maxPendingAdds;
+    }
+
+    // how long a commit waits for the bookies and the leader before giving up, its outcome then being unknown
+    public void setCommitTimeout(long millis) {
+        commitTimeout = millis;
+    }
+
+    public long getCommitTimeout() {
+        return commitTimeout;
+    }
+
+    // operations are packed into ledger entries of about this many bytes
+    public void setBatchSize(int bytes) {
+        batchSize = bytes;
+        buffers.setMaxLength(2 * bytes);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setCompressBatches(boolean compress) {
+        compressBatches = compress;
+    }
+
+    public boolean getCompressBatches() {
+        return compressBatches;
+    }
+
+    // bulk loads are applied in lmdb write transactions of about this many bytes
+    public void setBulkApplyChunkSize(long bytes) {
+        bulkApplyChunkSize = bytes;
+    }
+
+    public long getBulkApplyChunkSize() {
+        return bulkApplyChunkSize;
+    }
+
+    // write transactions committed within the window share one ledger and one log record. a window of 0 turns it off.
+    // transactions waiting for a group move to the new committer, or get ledgers of their own
+    public synchronized void setGroupCommit(long windowMillis, int maxBytes, int maxTransactions) {
+        GroupCommitter committer = null;
+        if (windowMillis > 0) {
+            committer = new GroupCommitter(this, windowMillis, maxBytes, maxTransactions);
+            committer.start();
+        }
+        GroupCommitter old = groupCommitter;
+        groupCommitter = committer;
+        if (old != null)
+            for (GroupCommitter.Pending p : old.stop())
+                if (committer == null || !committer.offer(p)) p.done.setFuture(commitAlone(p.entries, p.ops));
+    }
+
+    // followers forward their write transactions to the leader instead of failing with NotLeaderException.
+    // every node listens on host:port, set before open
+    public void setWriteForwarding(String host, int port) {
+        forwardingHost = host;
+        forwardingPort = port;
+    }
+
+    // blocks until the local env applied the log up to position, false on timeout
+    public boolean awaitPosition(long position, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (applyLock) {
+            long remaining = unit.toMillis(timeout);
+            while (appliedPosition < position) {
+                if (remaining <= 0) return false;
+                applyLock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return true;
+        }
+    }
+
+    // true once replay caught up with the log as it was when the env opened, or false on timeout
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    void ready() {
+        if (ready.getCount() == 0) return;
+        ready.countDown();
+        logger.info("ready at position " + appliedPosition);
+    }
+
+    public long getAppliedPosition() {
+        return appliedPosition;
+    }
+
+    // waits until this replica is as up to date as asked, read transactions opened afterwards see it
+    public void await(ReadConsistency consistency) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + consistency.timeoutMillis;
+        long position = consistency.linearizable ? commitPosition(consistency.timeoutMillis) : consistency.position;
+        if (!awaitPosition(position, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+            throw new RuntimeException(new TimeoutException("position " + position + " not applied within " + consistency.timeoutMillis + "ms, applied " + appliedPosition));
+    }
+
+    // the last position committed by the leader, followers ask it through the forwarding endpoint.
+    // there is no time based lease, the leader confirms it still leads after reading the position (see confirmedPosition)
+    long commitPosition(long timeoutMillis) throws InterruptedException {
+        if (leader) return confirmedPosition(timeoutMillis);
+        if (forwarder == null) throw new NotLeaderException();
+        try {
+            return forwarder.position().get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+            throw new RuntimeException(ee.getCause());
+        } catch (TimeoutException te) {
+            throw new RuntimeException(te);
+        }
+    }
+
+    // the last committed position, returned only once zookeeper confirmed the epoch did not move on after it was read.
+    // a new leader bumps the epoch before it commits anything, so a write it acknowledged is newer than this read.
+    // the sync brings our zookeeper server up to date with the quorum before we look at the epoch
+    long confirmedPosition(long timeoutMillis) throws InterruptedException {
+        if (!leader) throw new NotLeaderException();
+        long position = lastCommittedPosition();
+        int version = epochVersion;
+        Stat stat;
+        try {
+            sync(EPOCH_PATH, timeoutMillis);
+            stat = curator.checkExists().forPath(EPOCH_PATH);
+        } catch (InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        if (stat == null || stat.getVersion() != version) {
+            stepDown();
+            throw new NotLeaderException();
+        }
+        return position;
+    }
+
+    // brings our zookeeper server up to date with the quorum. reads after it also see whatever this session sent before
+    private void sync(String path, long timeoutMillis) throws Exception {
+        final CountDownLatch synced = new CountDownLatch(1);
+        curator.sync().inBackground(new BackgroundCallback() {
+            @Override
+            public void processResult(CuratorFramework client, CuratorEvent event) {
+                synced.countDown();
+            }
+        }).forPath(path);
+        if (!synced.await(timeoutMillis, TimeUnit.MILLISECONDS))
+            throw new TimeoutException("zookeeper not synced within " + timeoutMillis + "ms");
+    }
+
+    // confirmedPosition for the forwarding endpoint, off its connection thread
+    ListenableFuture<Long> confirmPosition() {
+        try {
+            return commitExecutor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return confirmedPosition(commitTimeout);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(new IllegalStateException("environment closed"));
+        }
+    }
+
+    // the position of the last record in the log index
+    long logEnd() throws Exception {
+        return readPosition(LOG_POSITION_PATH);
+    }
+
+    // the applied position each server last published
+    Map<Long, Long> watermarks() throws Exception {
+        Map<Long, Long> watermarks = new TreeMap<>();
+        for (Long id : quorumPeerConfig.getServers().keySet())
+            watermarks.put(id, readPosition(LOG_REMOVED_PATH + "/" + id));
+        return watermarks;
+    }
+
+    long lastCommittedPosition() {
+        synchronized (applyLock) {
+            return lastCommittedPosition;
+        }
+    }
+
+    // the forwarding endpoint of the current leader or null when there is none
+    String leaderAddress() throws Exception {
+        Participant participant = leaderSelector.getLeader();
+        return participant.isLeader() && !participant.getId().isEmpty() ? participant.getId() : null;
+    }
+
+    // streams every operation committed at or after fromPosition, as it is committed, to the listener
+    public Subscription subscribe(long fromPosition, ChangeListener listener) throws Exception {
+        Subscription subscription = new Subscription(this, fromPosition, listener, "rlmdb-subscription-" + myid + "-" + subscriptionIds.incrementAndGet());
+        subscriptions.add(subscription);
+        subscription.start();
+        return subscription;
+    }
+
+    void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
     public Database openDatabase(String name) throws Exception {
-        createZKPath(DB_NAME_MAP_PATH + "/" + BaseEncoding.base16().encode(Hashing.crc32c().hashBytes(bytes(name)).asBytes()));
-        return new Database(name, this);
+        if (META_DATABASE.equals(name)) throw new IllegalArgumentException("database name " + name + " is reserved");
+        int id = registerDatabase(name);
+        org.fusesource.lmdbjni.Database db = handle(id);
+        return new Database(name, id, this, db != null ? db : opened(id, name, openDbi(name)));
+    }
+
+    // the id of a database, a new one is taken from the counter in the registry node together with the name mappings
+    private int registerDatabase(String name) throws Exception {
+        String path = DB_NAME_MAP_PATH + "/" + BaseEncoding.base16().encode(bytes(name));
+        while (true) {
+            try {
+                return Ints.fromByteArray(curator.getData().forPath(path));
+            } catch (KeeperException.NoNodeException nne) {}
+            Stat stat = new Stat();
+            byte[] counter = curator.getData().storingStatIn(stat).forPath(DB_ID_PATH);
+            int id = counter.length == 0 ? 0 : Ints.fromByteArray(counter);
+            try {
+                curator.inTransaction()
+                        .setData().withVersion(stat.getVersion()).forPath(DB_ID_PATH, Ints.toByteArray(id + 1)).and()
+                        .create().forPath(path, Ints.toByteArray(id)).and()
+                        .create().forPath(databasePath(id), bytes(name)).and()
+                        .commit();
+                logger.info("registered database " + name + " with id " + id);
+                return id;
+            } catch (KeeperException.BadVersionException | KeeperException.NodeExistsException e) {}
+        }
+    }
+
+    private static String databasePath(int id) {
+        return DB_ID_PATH + "/" + String.format("%08x", id);
+    }
+
+    private void watchDatabaseRegistry() throws IOException {
+        databaseRegistry = new PathChildrenCache(curator, DB_ID_PATH, true);
+        databaseRegistry.getListenable().addListener(new PathChildrenCacheListener() {
+            @Override
+            public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) {
+                if (event.getData() == null) return;
+                int id = (int) Long.parseLong(ZKPaths.getNodeFromPath(event.getData().getPath()), 16);
+                switch (event.getType()) {
+                    case CHILD_ADDED:
+                    case CHILD_UPDATED:
+                        databaseNames.put(id, string(event.getData().getData()));
+                        break;
+                    case CHILD_REMOVED:
+                        droppedIds.add(id);
+                        databaseNames.remove(id);
+                        forget(id);
+                        break;
+                }
+            }
+        });
+        try {
+            databaseRegistry.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        for (ChildData data : databaseRegistry.getCurrentData())
+            databaseNames.put((int) Long.parseLong(ZKPaths.getNodeFromPath(data.getPath()), 16), string(data.getData()));
     }
 
     public int getClusterSize() {
@@ -158,10 +846,84 @@ public class Env implements LeaderSelectorListener {
         return new ReadTransaction(this);
     }
 
+    // a reset read transaction kept per thread is renewed instead of opening a new one and its reader slot
+    public ReadTransaction acquireReadTransaction() {
+        ReadTransaction rtx = readPool.get();
+        if(rtx != null) {
+            readPool.remove();
+            rtx.renew();
+            readPoolHits.incrementAndGet();
+            return rtx;
+        }
+        readPoolMisses.incrementAndGet();
+        rtx = new ReadTransaction(this, true);
+        pooledReads.add(rtx);
+        return rtx;
+    }
+
+    boolean releaseReadTransaction(ReadTransaction rtx) {
+        if(readPool.get() != null) return false;
+        rtx.reset();
+        readPool.set(rtx);
+        return true;
+    }
+
+    void discardReadTransaction(ReadTransaction rtx) {
+        pooledReads.remove(rtx);
+    }
+
+    public long getReadPoolHits() {
+        return readPoolHits.get();
+    }
+
+    public long getReadPoolMisses() {
+        return readPoolMisses.get();
+    }
+
+    public long getReaderSlotsUsed() {
+        enterMap();
+        try {
+            return env.info().getNumReaders();
+        } finally {
+            exitMap();
+        }
+    }
+
+    public long getReaderSlotsMax() {
+        enterMap();
+        try {
+            return env.info().getMaxReaders();
+        } finally {
+            exitMap();
+        }
+    }
+
     public WriteTransaction createWriteTransaction() {
         return new WriteTransaction(this);
     }
 
+    // a transaction reads its own writes through Database.get(WriteTransaction, key) from a copy of them.
+    // false skips the copies, for transactions that only write
+    public WriteTransaction createWriteTransaction(boolean readOwnWrites) {
+        return new WriteTransaction(this, false, readOwnWrites);
+    }
+
+    // streams key sorted data into its own ledger, replicas apply it with MDB_APPEND
+    public void bulkLoad(Database db, Iterator<KeyValue> data) throws Exception {
+        Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+        byte[] previous = null;
+        try (WriteTransaction tx = new WriteTransaction(this, true, false)) {
+            while (data.hasNext()) {
+                KeyValue kv = data.next();
+                if (previous != null && comparator.compare(previous, kv.getKey()) >= 0)
+                    throw new IllegalArgumentException("bulk load input must be sorted by key without duplicates");
+                tx.append(db.getId(), kv.getKey(), kv.getValue());
+                previous = kv.getKey();
+            }
+            tx.commit();
+        }
+    }
+
     public static long byteArrayToLong(byte[] array, int offset) {
         return ((long)(array[offset]   & 0xff) << 56) |
                 ((long)(array[offset+1] & 0xff) << 48) |
@@ -192,12 +954,13 @@ public class Env implements LeaderSelectorListener {
 
     LedgerHandle createLedger() {
         if(!leader) throw new NotLeaderException();
+        long start = System.nanoTime();
         LedgerHandle lh = null;
         int n = getClusterSize();
         do try {
             try {
                 final int m = n > 2 ? n - 1 : n;
-                lh = Env.bookkeeper.createLedger(n, m, m, BookKeeper.DigestType.MAC, new byte[]{0x00});
+                lh = bookkeeper.createLedger(n, m, m, BookKeeper.DigestType.MAC, new byte[]{0x00});
             } catch (BKException bke) {
                 if (bke.getCode() != BKException.Code.NotEnoughBookiesException) throw bke;
                 else {
@@ -208,34 +971,447 @@ public class Env implements LeaderSelectorListener {
         } catch (Exception e) {
             throw new RuntimeException(e);
         } while (lh == null);
+        try {
+            curator.create().forPath(inflightPath(lh), longToByteArray(epoch));
+        } catch (Exception e) {
+            abortLedger(lh);
+            throw new RuntimeException(e);
+        }
+        metrics.createLedger.record(System.nanoTime() - start);
         return lh;
     }
 
-    void commitLedger(LedgerHandle lh) {
+    private static String inflightPath(LedgerHandle lh) {
+        return INFLIGHT_PATH + "/" + String.format("%016x", lh.getId());
+    }
+
+    // commits buffered entries in a ledger of their own or the next group while leading, otherwise forwards them
+    ListenableFuture<Long> commitEntries(final List<byte[]> entries) {
+        if (leader) {
+            List<Batch.Op> ops = WriteTransaction.ops(entries);
+            GroupCommitter.Pending p = new GroupCommitter.Pending(entries, ops);
+            // a committer stopped meanwhile has been replaced already
+            GroupCommitter committer;
+            while ((committer = groupCommitter) != null)
+                if (committer.offer(p)) return p.done;
+            return commitAlone(entries, ops);
+        }
+        if (forwarder != null) return forwarder.forward(entries);
+        throw new NotLeaderException();
+    }
+
+    private ListenableFuture<Long> commitAlone(final List<byte[]> entries, final List<Batch.Op> ops) {
+        try {
+            return commitExecutor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return writeLedger(entries, ops);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(new IllegalStateException("environment closed"));
+        }
+    }
+
+    // the entries are pipelined like a direct transaction's, at most maxPendingAdds in flight
+    long writeLedger(List<byte[]> entries, List<Batch.Op> ops) throws InterruptedException {
+        LedgerHandle lh = createLedger();
+        final Semaphore pendingAdds = new Semaphore(maxPendingAdds);
+        final AtomicInteger rc = new AtomicInteger(BKException.Code.OK);
+        AsyncCallback.AddCallback callback = new AsyncCallback.AddCallback() {
+            @Override
+            public void addComplete(int code, LedgerHandle lh, long entryId, Object ctx) {
+                if (code != BKException.Code.OK) rc.compareAndSet(BKException.Code.OK, code);
+                pendingAdds.release();
+            }
+        };
+        try {
+            for (byte[] e : entries) {
+                if (rc.get() != BKException.Code.OK) break;
+                pendingAdds.acquire();
+                lh.asyncAddEntry(e, callback, null);
+            }
+            if (!pendingAdds.tryAcquire(maxPendingAdds, commitTimeout, TimeUnit.MILLISECONDS))
+                throw new TimeoutException("entries not acknowledged within " + commitTimeout + "ms");
+            if (rc.get() != BKException.Code.OK) throw BKException.create(rc.get());
+        } catch (InterruptedException ie) {
+            abortLedger(lh);
+            throw ie;
+        } catch (Exception e) {
+            abortLedger(lh);
+            throw new RuntimeException("commit problem. ledger with id " + lh.getId() + " aborted after failed entry writes: " + e.getMessage(), e);
+        }
+        return commitLedger(lh, ops);
+    }
+
+    // publishes the ledger and, when caught up, applies its operations locally so the leader never replays its own ledgers.
+    // the operations are decoded from the logged entries. null leaves the ledger to replay
+    long commitLedger(LedgerHandle lh, List<Batch.Op> ops) {
         if(!leader) throw new NotLeaderException();
+        long start = System.nanoTime();
         try {
             lh.close();
-            Stat stat = new Stat();
-            for (Long id : quorumPeerConfig.getServers().keySet()) {
-                final String p = LOG_LIST_PATH + "/" + id;
-                byte[] ledgerList = curator.getData().storingStatIn(stat).forPath(p);
-                curator.setData().withVersion(stat.getVersion()).forPath(p, Bytes.concat(ledgerList, longToByteArray(lh.getId()), longToByteArray(System.currentTimeMillis())));
-            }
         } catch (Exception e) {
-            try { bookkeeper.deleteLedger(lh.getId()); } catch (Exception i) {}
-            throw new RuntimeException("commit problem. the ledger with id " + lh.getId() + " removal was attempted after the exception: " + e.getMessage(), e);
+            throw commitProblem(lh, e);
+        }
+        synchronized (applyLock) {
+            // positions come from a counter of our own, bumped with the record in the same multi-op. the version check
+            // keeps a commit that went through unnoticed from handing its position out twice
+            long position = lastCommittedPosition + 1;
+            long zk = System.nanoTime();
+            try {
+                CuratorTransactionFinal multi = curator.inTransaction()
+                        .check().withVersion(epochVersion).forPath(EPOCH_PATH).and()
+                        .setData().withVersion(positionVersion).forPath(LOG_POSITION_PATH, longToByteArray(position)).and();
+                if (position % LogRecord.SEGMENT == 0)
+                    multi = multi.create().forPath(LogRecord.segmentPath(LOG_INDEX_PATH, LogRecord.segment(position)), new byte[]{}).and();
+                Collection<CuratorTransactionResult> results = multi
+                        .create().forPath(LogRecord.path(LOG_INDEX_PATH, position, lh.getId()), Bytes.concat(longToByteArray(System.currentTimeMillis()), longToByteArray(epoch))).and()
+                        .delete().forPath(inflightPath(lh)).and()
+                        .commit();
+                for (CuratorTransactionResult r : results)
+                    if (r.getType() == OperationType.SET_DATA) positionVersion = r.getResultStat().getVersion();
+                metrics.commitZooKeeper.record(System.nanoTime() - zk);
+            } catch (Exception e) {
+                resolvePublish(lh, position, e);
+            }
+            boolean caughtUp = appliedPosition == lastCommittedPosition;
+            lastCommittedPosition = position;
+            if (caughtUp && ops != null) try {
+                applyOps(ops, position);
+                // the watermark is only read by compaction and restarts, a lagging one costs a replay so it stays off the commit path
+                if (!relaxedSync) curator.setData().inBackground().forPath(lastProcessedLedgerPath, longToByteArray(position));
+                appliedPosition = position;
+                applyLock.notifyAll();
+            } catch (Exception e) {
+                logger.warn("local apply of position " + position + " failed. leaving it to replay", e);
+            }
+            metrics.commitLedger.record(System.nanoTime() - start);
+            return position;
         }
     }
 
+    // a failed publish may still have gone through: curator retries the multi-op after a connection loss, and the retry
+    // of one that made it fails on the position version. the multi-op creates the record and deletes the inflight node,
+    // so after a sync they tell. returns when the record is there, the ledger is only deleted when it provably is not
+    private void resolvePublish(LedgerHandle lh, long position, Exception e) {
+        Boolean published = null;
+        boolean leading = false;
+        int version = -1;
+        try {
+            sync(EPOCH_PATH, commitTimeout);
+            leading = curator.checkExists().forPath(EPOCH_PATH).getVersion() == epochVersion;
+            version = curator.checkExists().forPath(LOG_POSITION_PATH).getVersion();
+            if (curator.checkExists().forPath(LogRecord.path(LOG_INDEX_PATH, position, lh.getId())) != null) published = true;
+            else if (curator.checkExists().forPath(inflightPath(lh)) != null) published = false;
+        } catch (Exception re) {
+            logger.warn("could not tell whether ledger " + lh.getId() + " was published", re);
+        }
+        if (published == null) {
+            // neither node: a later leader fenced the ledger, or committed and compacted past it
+            stepDown();
+            metrics.failedCommits.incrementAndGet();
+            throw new CommitOutcomeUnknownException("ledger " + lh.getId() + " may or may not be committed at position " + position + " after: " + e.getMessage(), e);
+        }
+        if (published) {
+            logger.info("ledger " + lh.getId() + " was published at position " + position + " despite: " + e.getMessage());
+            if (leading) positionVersion = version;
+            else stepDown();
+            return;
+        }
+        if (leading && version == positionVersion) throw commitProblem(lh, e);
+        stepDown();
+        commitProblem(lh, e);
+        throw new NotLeaderException();
+    }
+
+    private RuntimeException commitProblem(LedgerHandle lh, Exception e) {
+        metrics.failedCommits.incrementAndGet();
+        try { bookkeeper.deleteLedger(lh.getId()); } catch (Exception i) {}
+        try { curator.delete().forPath(inflightPath(lh)); } catch (Exception i) {}
+        return new RuntimeException("commit problem. the ledger with id " + lh.getId() + " removal was attempted after the exception: " + e.getMessage(), e);
+    }
+
+    // writes the operations logged at position to the local env in one lmdb transaction, must hold applyLock.
+    // dbi handles are opened before the write txn as lmdb's writer lock is not reentrant.
+    // a drop names its database, it may be gone from the registry already. it closes the dbi of that name, which
+    // a database recreated under the name meanwhile may share, so every id of the name is forgotten
+    void applyOps(List<Batch.Op> ops, long position) throws Exception {
+        List<org.fusesource.lmdbjni.Database> dbs = new ArrayList<>(ops.size());
+        Map<Integer, org.fusesource.lmdbjni.Database> resolved = new HashMap<>();
+        for (Batch.Op op : ops) {
+            if (op.type == Batch.TXN) {
+                dbs.add(null);
+                continue;
+            }
+            int id = Ints.fromByteArray(op.db);
+            if (!resolved.containsKey(id)) resolved.put(id, database(id));
+            org.fusesource.lmdbjni.Database db = resolved.get(id);
+            if (db == null && op.type == Batch.DROP) resolved.put(id, db = openDbi(string(op.key)));
+            dbs.add(db);
+        }
+        List<String> dropped = new ArrayList<>();
+        while (true) try {
+            applyOps(ops, dbs, dropped, position);
+            break;
+        } catch (LMDBException e) {
+            if (!growMap(e)) throw e;
+            dropped.clear();
+        }
+        for (String name : dropped) forget(name);
+    }
+
+    private void applyOps(List<Batch.Op> ops, List<org.fusesource.lmdbjni.Database> dbs, List<String> dropped, long position) {
+        try (org.fusesource.lmdbjni.Transaction tx = env.createWriteTransaction()) {
+            for (int i = 0; i < ops.size(); i++) {
+                org.fusesource.lmdbjni.Database db = dbs.get(i);
+                if (db == null) continue;
+                Batch.Op op = ops.get(i);
+                if (op.type == Batch.DEL) db.delete(tx, op.key);
+                else if (op.type == Batch.DROP) {
+                    db.drop(tx, true);
+                    dropped.add(string(op.key));
+                } else db.put(tx, op.key, op.value);
+            }
+            applied(tx, position);
+            tx.commit();
+        }
+    }
+
+    // where a bulk ledger at position was left part way through: the next entry to apply and the operations applied so far
+    long[] bulkProgress(long position) {
+        enterMap();
+        try {
+            byte[] progress = meta.get(BULK_KEY);
+            if (progress == null || byteArrayToLong(progress) != position) return new long[]{0, 0};
+            return new long[]{byteArrayToLong(progress, 8), byteArrayToLong(progress, 16)};
+        } finally {
+            exitMap();
+        }
+    }
+
+    // recorded in the apply txn, so a copy of the env carries the position it is at
+    void applied(org.fusesource.lmdbjni.Transaction tx, long position) {
+        meta.put(tx, APPLIED_KEY, longToByteArray(position));
+    }
+
+    // recorded in the txn of each bulk chunk, so a chunk is never applied twice
+    void bulkProgress(org.fusesource.lmdbjni.Transaction tx, long position, long next, long count) {
+        meta.put(tx, BULK_KEY, Bytes.concat(longToByteArray(position), longToByteArray(next), longToByteArray(count)));
+    }
+
+    // true while leading with every committed position applied here, the replayer has nothing to do then
+    boolean caughtUp() {
+        synchronized (applyLock) {
+            return leader && appliedPosition == lastCommittedPosition;
+        }
+    }
+
+    // records a position as applied to the local env, must hold applyLock
+    void applied(long position) throws Exception {
+        if (!relaxedSync) curator.setData().forPath(lastProcessedLedgerPath, longToByteArray(position));
+        appliedPosition = position;
+        applyLock.notifyAll();
+    }
+
+    // flushes lmdb and then publishes what it holds as the applied watermark, for envs opened without sync
+    private void sync() throws Exception {
+        long position = appliedPosition;
+        if (position == syncedPosition) return;
+        enterMap();
+        try {
+            env.sync(true);
+        } finally {
+            exitMap();
+        }
+        curator.setData().forPath(lastProcessedLedgerPath, longToByteArray(position));
+        syncedPosition = position;
+    }
+
+    // grows a full map so the failed write can run again, false for other errors or when the map may not grow.
+    // must hold applyLock with no write txn open
+    boolean growMap(LMDBException e) throws InterruptedException {
+        if (e.getErrorCode() != LMDBException.MAP_FULL || mapGrowthFactor <= 1) return false;
+        long size = env.info().getMapSize();
+        if (size >= maxMapSize) {
+            logger.error("lmdb map full at its maximum size of " + size + " bytes");
+            return false;
+        }
+        long grown = (long) Math.min(maxMapSize, Math.ceil(size * mapGrowthFactor));
+        mapResizing = true;
+        try {
+            long deadline = System.currentTimeMillis() + replayPollInterval;
+            while (mapReaders.get() > 0) {
+                if (System.currentTimeMillis() > deadline) {
+                    logger.warn("lmdb map full, read transactions kept open for " + replayPollInterval + "ms hold off growing it");
+                    return false;
+                }
+                synchronized (mapReaders) {
+                    if (mapReaders.get() > 0) mapReaders.wait(10);
+                }
+            }
+            env.setMapSize(grown);
+        } finally {
+            mapResizing = false;
+            synchronized (mapReaders) {
+                mapReaders.notifyAll();
+            }
+        }
+        metrics.mapGrowths.incrementAndGet();
+        logger.info("lmdb map grown from " + size + " to " + grown + " bytes");
+        return true;
+    }
+
+    void enterMap() {
+        while (true) {
+            if (mapResizing) synchronized (mapReaders) {
+                while (mapResizing) try {
+                    mapReaders.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ie);
+                }
+            }
+            mapReaders.incrementAndGet();
+            if (!mapResizing) return;
+            exitMap();
+        }
+    }
+
+    void exitMap() {
+        if (mapReaders.decrementAndGet() == 0 && mapResizing) synchronized (mapReaders) {
+            mapReaders.notifyAll();
+        }
+    }
+
+    org.fusesource.lmdbjni.Database openDbi(String name) {
+        enterMap();
+        try {
+            return env.openDatabase(name);
+        } finally {
+            exitMap();
+        }
+    }
+
+    org.fusesource.lmdbjni.Database database(byte[] id) throws Exception {
+        return database(Ints.fromByteArray(id));
+    }
+
+    // the local dbi for a logged database id or null when the database is unknown or dropped.
+    // opening a dbi takes lmdb's writer lock, so not while a write txn is open on this thread
+    org.fusesource.lmdbjni.Database database(int id) throws Exception {
+        org.fusesource.lmdbjni.Database db = handle(id);
+        if (db != null) return db;
+        String name = databaseName(id);
+        return name == null ? null : opened(id, name, openDbi(name));
+    }
+
+    // the dbi handle of an open database id or null
+    org.fusesource.lmdbjni.Database handle(int id) {
+        org.fusesource.lmdbjni.Database[] dbs = databases;
+        return id < dbs.length ? dbs[id] : null;
+    }
+
+    // every user of a database id shares the first handle opened for it. a handle is not closed when it loses,
+    // closing would release the dbi under the winner
+    private synchronized org.fusesource.lmdbjni.Database opened(int id, String name, org.fusesource.lmdbjni.Database db) {
+        org.fusesource.lmdbjni.Database[] dbs = databases;
+        if (id < dbs.length && dbs[id] != null) return dbs[id];
+        handleNames.put(id, name);
+        if (id >= dbs.length) dbs = Arrays.copyOf(dbs, Math.max(dbs.length * 2, id + 1));
+        else dbs = dbs.clone();
+        dbs[id] = db;
+        databases = dbs;
+        return db;
+    }
+
+    // forgets the handle only while it is the one in use, a dropped database's handle is closed by lmdb already.
+    // true when it may be closed, which is not while another id still uses the dbi
+    synchronized boolean forget(int id, org.fusesource.lmdbjni.Database db) {
+        if (handle(id) != db) return false;
+        String name = handleNames.get(id);
+        forget(id);
+        return !handleNames.containsValue(name);
+    }
+
+    // forgets every id using the dbi of a dropped name
+    synchronized void forget(String name) {
+        for (int id : new ArrayList<>(handleNames.keySet()))
+            if (name.equals(handleNames.get(id))) forget(id);
+    }
+
+    synchronized void forget(int id) {
+        handleNames.remove(id);
+        org.fusesource.lmdbjni.Database[] dbs = databases;
+        if (id >= dbs.length || dbs[id] == null) return;
+        dbs = dbs.clone();
+        dbs[id] = null;
+        databases = dbs;
+    }
+
+    String databaseName(byte[] id) throws Exception {
+        return databaseName(Ints.fromByteArray(id));
+    }
+
+    // the name of a logged database id, from the watched registry or zookeeper when not seen yet, or null when dropped.
+    // an id is registered before anything is logged for it, so one missing from the registry is gone
+    String databaseName(int id) throws Exception {
+        String name = databaseNames.get(id);
+        if (name != null || droppedIds.contains(id)) return name;
+        try {
+            name = string(curator.getData().forPath(databasePath(id)));
+            databaseNames.put(id, name);
+        } catch (KeeperException.NoNodeException nne) {
+            if (droppedIds.add(id)) logger.warn("skipping operations on dropped database " + id);
+        }
+        return name;
+    }
+
     void abortLedger(LedgerHandle lh) {
         if(!leader) throw new NotLeaderException();
         try { lh.close(); } catch (Exception i) {}
         try { bookkeeper.deleteLedger(lh.getId()); } catch (Exception i) {}
+        try { curator.delete().forPath(inflightPath(lh)); } catch (Exception i) {}
     }
 
-    void dropDatabase(byte[] id) {
+    // drops the index records and ledgers every replica has already applied or the last snapshot covers.
+    // replicas left behind restore that snapshot
+    void compactLog() throws Exception {
+        long applied = Long.MAX_VALUE;
+        for (long watermark : watermarks().values()) applied = Math.min(applied, watermark);
+        applied = Math.max(applied, Math.min(readPosition(SNAPSHOT_PATH), appliedPosition));
+        long truncated = readPosition(LOG_TRUNCATED_PATH);
+        if (applied <= truncated) return;
+        // one multi-op per segment. the truncation mark and the index records go together, so lagging replicas notice
+        // instead of skipping records. a segment goes once all of its positions are truncated.
+        // ledgers are only deleted once nothing points at them anymore
+        int count = 0;
+        for (long segment = LogRecord.segment(truncated + 1); segment <= LogRecord.segment(applied); segment++) {
+            long last = (segment + 1) * LogRecord.SEGMENT - 1;
+            List<LogRecord> truncate = new ArrayList<>();
+            for (LogRecord record : LogRecord.read(curator, LOG_INDEX_PATH, Math.max(truncated + 1, segment * LogRecord.SEGMENT), Math.min(applied, last)))
+                if (record.position <= applied) truncate.add(record);
+            if (truncate.isEmpty()) continue;
+            CuratorTransactionFinal multi = curator.inTransaction()
+                    .check().withVersion(epochVersion).forPath(EPOCH_PATH).and()
+                    .setData().forPath(LOG_TRUNCATED_PATH, longToByteArray(truncate.get(truncate.size() - 1).position)).and();
+            for (LogRecord record : truncate) multi = multi.delete().forPath(record.path(LOG_INDEX_PATH)).and();
+            if (last <= applied) multi = multi.delete().forPath(LogRecord.segmentPath(LOG_INDEX_PATH, segment)).and();
+            multi.commit();
+            for (LogRecord record : truncate)
+                try { bookkeeper.deleteLedger(record.ledgerId); } catch (BKException.BKNoSuchLedgerExistsException e) {}
+            count += truncate.size();
+        }
+        logger.info("compacted " + count + " log records up to position " + applied);
+    }
+
+    // a dropped database leaves the registry once the drop is logged, the replicas drop it by name on replay
+    void dropDatabase(int id, String name) {
         try {
-            curator.delete().forPath(DB_NAME_MAP_PATH + "/" + BaseEncoding.base16().encode(id));
+            curator.inTransaction()
+                    .delete().forPath(DB_NAME_MAP_PATH + "/" + BaseEncoding.base16().encode(bytes(name))).and()
+                    .delete().forPath(databasePath(id)).and()
+                    .commit();
         } catch(Exception e) {
             throw new RuntimeException(e);
         }
@@ -267,6 +1443,11 @@ public class Env implements LeaderSelectorListener {
         } catch (JMException e) {
             logger.warn("unable to register log4j jmx control", e);
         }
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            logger.warn("unable to register metrics jmx beans", e);
+        }
 
         cnxnFactory.configure(quorumPeerConfig.getClientPortAddress(), quorumPeerConfig.getMaxClientCnxns());
 
@@ -292,30 +1473,20 @@ public class Env implements LeaderSelectorListener {
 
     private void startBookKeeper(String path, Properties bk) throws IOException, ConfigurationException, InterruptedException, BookieException, ReplicationException.CompatibilityException, ReplicationException.UnavailableException, KeeperException {
 
-        curator = CuratorFrameworkFactory.newClient(bk.getProperty("zkServers"), 2000, 10000, new ExponentialBackoffRetry(1000, 3));
+        curator = CuratorFrameworkFactory.newClient(bk.getProperty("zkServers"), 2000, 10000, new BoundedExponentialBackoffRetry(50, 1000, 30));
         curator.start();
         curator.blockUntilConnected();
 
         try {
-            Stat stat = new Stat();
-
-            createZKPath("/ledgers");
-            createZKPath("/available");
-            createZKPath(ZKPATH);
-            createZKPath(LOG_LIST_PATH);
-            createZKPath(LOG_REMOVED_PATH);
-
-            for (Long id : quorumPeerConfig.getServers().keySet())
-                for(String p: new String[] { LOG_LIST_PATH +"/"+id, LOG_REMOVED_PATH+"/"+ id })
-                    createZKPath(p);
-
+            bootstrap();
+        } catch(KeeperException | InterruptedException e) {
+            throw e;
         } catch(Exception e) {
-            logger.warn("",e);
+            throw new RuntimeException(e);
         }
 
         leaderSelector = new LeaderSelector(curator, ELECTION_PATH, this);
         leaderSelector.autoRequeue();
-        leaderSelector.start();
 
         String prefix = FilenameUtils.normalize(path + "/bk/");
         String journalDirectory = FilenameUtils.normalize(prefix + bk.getProperty("journalDirectory"));
@@ -343,15 +1514,53 @@ public class Env implements LeaderSelectorListener {
 
         bookie.start();
 
-        bookkeeper = new BookKeeper(new ClientConfiguration().setZkServers(bk.getProperty("zkServers")).setZkTimeout(Integer.parseInt(bk.getProperty("zkTimeout"))));
+        // the client rides on curator's zookeeper session instead of opening one of its own
+        bookkeeperConfig = new ClientConfiguration().setZkServers(bk.getProperty("zkServers")).setZkTimeout(Integer.parseInt(bk.getProperty("zkTimeout")));
+        try {
+            bookkeeperZooKeeper = curator.getZookeeperClient().getZooKeeper();
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        bookkeeper = new BookKeeper(bookkeeperConfig, bookkeeperZooKeeper);
     }
 
+    // curator replaces its zookeeper handle when the session expired, the bookkeeper client moves along
+    private void reconnectBookKeeper() {
+        synchronized (bookkeeperConfig) {
+            try {
+                ZooKeeper zk = curator.getZookeeperClient().getZooKeeper();
+                if (zk == bookkeeperZooKeeper) return;
+                BookKeeper old = bookkeeper;
+                bookkeeper = new BookKeeper(bookkeeperConfig, zk);
+                bookkeeperZooKeeper = zk;
+                old.close();
+                logger.info("bookkeeper client moved to the new zookeeper session");
+            } catch (Exception e) {
+                logger.warn("bookkeeper client reconnect problem", e);
+            }
+        }
+    }
 
-    private void createZKPath(String path) throws Exception {
-        try { curator.create().forPath(path); }
-        catch(KeeperException.NodeExistsException kne) {}
-        catch(KeeperException.NoNodeException kne) {}
-        curator.setData().withVersion(new Stat().getVersion()).forPath(path, new byte[]{});
+    // creates whatever a fresh cluster misses in one multi-op and leaves existing nodes and their data alone.
+    // nodes bootstrapping together race, the losers look again
+    private void bootstrap() throws Exception {
+        List<String> paths = Lists.newArrayList("/ledgers", "/ledgers/available", "/ledgers/available/readonly",
+                ZKPATH, LOG_LIST_PATH, LOG_REMOVED_PATH, LOG_INDEX_PATH, LOG_POSITION_PATH, LOG_TRUNCATED_PATH,
+                SNAPSHOT_PATH, EPOCH_PATH, INFLIGHT_PATH, DB_NAME_MAP_PATH, DB_ID_PATH);
+        for (Long id : quorumPeerConfig.getServers().keySet())
+            paths.add(LOG_REMOVED_PATH + "/" + id);
+        while (true) {
+            CuratorTransaction tx = curator.inTransaction();
+            CuratorTransactionFinal missing = null;
+            for (String path : paths)
+                if (curator.checkExists().forPath(path) == null) tx = missing = tx.create().forPath(path, new byte[]{}).and();
+            if (missing == null) return;
+            try {
+                missing.commit();
+                logger.info("bootstrapped zookeeper");
+                return;
+            } catch (KeeperException.NodeExistsException e) {}
+        }
     }
 
 //////////////////////////////////////////////////////////////////////////////
@@ -365,89 +1574,6 @@ public class Env implements LeaderSelectorListener {
         LogManager.getRootLogger().addAppender(new ConsoleAppender(new PatternLayout("%d{yyyy-MM-dd HH:mm:ss.SSS} %c %5p: %m%n"), ConsoleAppender.SYSTEM_ERR));
     }
 
-    public void stupidTest() throws Exception {
-
-        while(true) {
-            TimeUnit.SECONDS.sleep(1);
-            if(!leader) {
-                System.out.println("following...");
-                byte[] lastProcessedLedger = curator.getData().forPath(lastProcessedLedgerPath);
-                byte[] ledgerList = curator.getData().forPath(LOG_LIST_PATH);
-
-                int listStart = Bytes.indexOf(ledgerList, lastProcessedLedger);
-                listStart = (listStart == -1 ? 0 : listStart) + 8;
-
-                LedgerHandle lh = null;
-                for(int i = listStart; i < ledgerList.length; i += 8) try {
-                    lh = bookkeeper.openLedger(byteArrayToLong(ledgerList,i), BookKeeper.DigestType.MAC, new byte[]{0x00});
-                    LedgerEntry le = lh.readEntries(0,lh.getLastAddConfirmed()).nextElement();
-                    System.out.println(new String(le.getEntry()) + ": " + lh.getId());
-                } catch(Exception e) {
-                    System.out.println(e.getMessage());
-                    continue;
-                } finally {
-                    if(lh != null) {
-                        lh.close();
-                        curator.setData().forPath(lastProcessedLedgerPath, longToByteArray(lh.getId()));
-                    }
-                }
-            } else {
-                Stat stat = new Stat();
-
-                byte[] ledgerList = curator.getData().storingStatIn(stat).forPath(LOG_LIST_PATH);
-
-                System.out.println("ledgerList=" + BaseEncoding.base16().encode(ledgerList));
-
-                if (ledgerList.length > 0) {
-                    byte[] nextarray = new byte[]{};
-                    long first = Long.MAX_VALUE;
-                    for (Long id : quorumPeerConfig.getServers().keySet()) {
-                        nextarray = curator.getData().forPath(LOG_REMOVED_PATH + "/" + id);
-                        System.out.println("nextarray.length=" + nextarray.length);
-                        System.out.println("       nextarray=" + BaseEncoding.base16().encode(nextarray));
-                        if(nextarray.length > 0) {
-                            long next = byteArrayToLong(nextarray);
-                            if (next < first) first = next;
-                        }
-                    }
-
-                    System.out.println("first=" + first);
-
-                    if(first < Long.MAX_VALUE) {
-                        int listIndex = Bytes.indexOf(ledgerList,nextarray);
-                        ledgerList = Arrays.copyOfRange(ledgerList, listIndex < 0 ? 0 : listIndex, ledgerList.length);
-                    }
-                }
-
-                System.out.println("ledgerList=" + BaseEncoding.base16().encode(ledgerList));
-
-                System.out.print("leading... ");
-                LedgerHandle lh = null;
-                do try {
-                    // for cluster with 2N+1 cluster members where N >= 1 and M = N-1:
-                    // try createLedger(N, M, M, ...) until N=3 then try with M=N=2
-                    lh = bookkeeper.createLedger(2, 2, 2, BookKeeper.DigestType.MAC, new byte[]{0x00});
-                } catch(BKException bke) {
-                    if(bke.getCode() != BKException.Code.NotEnoughBookiesException) System.out.println(bke.getMessage());
-                    else TimeUnit.MILLISECONDS.sleep(500);
-                } while(lh == null);
-                if(lh != null) try {
-                    lh.addEntry(UUID.randomUUID().toString().getBytes());
-                    //curator.setData().forPath("/rlmdb-log", lh.getId())
-                    System.out.print(lh.getId());
-                } catch(Exception e) {
-                    continue;
-                    //e.printStackTrace(System.out);
-                } finally {
-                    lh.close();
-                    curator.setData().withVersion(stat.getVersion()).forPath(LOG_LIST_PATH, Bytes.concat(ledgerList, longToByteArray(lh.getId())));
-                }
-                System.out.println();
-            }
-        }
-
-    }
-
     public static void main(String[] arg) throws Exception {
 
         long id = Long.parseLong(arg[0]);
@@ -460,9 +1586,8 @@ public class Env implements LeaderSelectorListener {
         Properties bk = new Properties();
         bk.load(new FileInputStream(arg[2])); //"/tmp/bookieserver1.conf"));
 
-        env.open("/tmp/db" + arg[0], Constants.FIXEDMAP, zk, bk);
+        env.open("/tmp/db" + arg[0], EnumSet.of(EnvFlag.NOSYNC, EnvFlag.WRITEMAP, EnvFlag.NORDAHEAD), zk, bk);
         System.out.println("opened");
-//        env.stupidTest();
         Database db = env.openDatabase("coldb");
         System.out.println("created db");
         if(env.leader()) db.put(bytes("oi"), bytes("hello"));
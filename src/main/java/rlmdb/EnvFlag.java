@@ -0,0 +1,34 @@
+package rlmdb;
+
+import org.fusesource.lmdbjni.Constants;
+
+import java.util.Set;
+
+// lmdb environment flags for Env.open. the ledgers hold the durable copy of the data, so a replica can give up
+// local fsyncs: with NOSYNC, NOMETASYNC or MAPASYNC the applied watermark only moves after a periodic sync and
+// a crash replays the log from there
+public enum EnvFlag {
+
+    NOSYNC(Constants.NOSYNC),
+    NOMETASYNC(Constants.NOMETASYNC),
+    MAPASYNC(Constants.MAPASYNC),
+    WRITEMAP(Constants.WRITEMAP),
+    NORDAHEAD(Constants.NORDAHEAD),
+    NOMEMINIT(Constants.NOMEMINIT);
+
+    final int value;
+
+    EnvFlag(int value) {
+        this.value = value;
+    }
+
+    static int value(Set<EnvFlag> flags) {
+        int value = 0;
+        for(EnvFlag flag: flags) value |= flag.value;
+        return value;
+    }
+
+    static boolean relaxedSync(int flags) {
+        return (flags & (Constants.NOSYNC | Constants.NOMETASYNC | Constants.MAPASYNC)) != 0;
+    }
+}
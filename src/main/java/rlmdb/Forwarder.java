@@ -0,0 +1,235 @@
+package rlmdb;
+
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// sends the write transactions of a follower to the leader over one reused connection, see ForwardingServer.
+// requests the leader turned down, or that found no leader, are sent again once leadership settles
+class Forwarder implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(Forwarder.class);
+
+    private static final long RETRY_DELAY = 50;
+    private static final int MAX_ATTEMPTS = 20;
+
+    private final Env env;
+    private final AtomicLong ids = new AtomicLong();
+    private final ScheduledExecutorService retries;
+    private final Set<Request> waiting = Collections.newSetFromMap(new ConcurrentHashMap<Request, Boolean>());
+
+    private Connection connection;
+    private boolean closed = false;
+
+    private static class Request {
+        final long id;
+        // null asks for the leader's last committed position
+        final List<byte[]> entries;
+        final SettableFuture<Long> done = SettableFuture.create();
+        int attempts = 0;
+
+        Request(long id, List<byte[]> entries) {
+            this.id = id;
+            this.entries = entries;
+        }
+    }
+
+    private class Connection implements Runnable {
+        final String address;
+        final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+        final ConcurrentMap<Long, Request> pending = new ConcurrentHashMap<>();
+        volatile boolean broken = false;
+
+        Connection(String address) throws IOException {
+            this.address = address;
+            HostAndPort hp = HostAndPort.fromString(address);
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(hp.getHostText(), hp.getPort()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread t = new Thread(this, "rlmdb-forwarder-" + env.getId());
+            t.setDaemon(true);
+            t.start();
+        }
+
+        // false when the connection went out of use, the request is to go through the next one
+        boolean send(Request r) throws IOException {
+            int length = 12;
+            if(r.entries != null) for(byte[] e: r.entries) length += 4 + e.length;
+            if(length > ForwardingServer.MAX_FRAME) throw new IllegalArgumentException("transaction too large to forward: " + length + " bytes");
+            synchronized (out) {
+                if(broken) return false;
+                pending.put(r.id, r);
+                out.writeInt(length);
+                out.writeLong(r.id);
+                if(r.entries == null) out.writeInt(ForwardingServer.POSITION);
+                else {
+                    out.writeInt(r.entries.size());
+                    for(byte[] e: r.entries) {
+                        out.writeInt(e.length);
+                        out.write(e);
+                    }
+                }
+                out.flush();
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    long id = in.readLong();
+                    byte status = in.readByte();
+                    long position = status == ForwardingServer.OK ? in.readLong() : -1;
+                    String message = status == ForwardingServer.FAILED || status == ForwardingServer.UNKNOWN ? in.readUTF() : null;
+                    Request r = pending.remove(id);
+                    if(r != null) {
+                        if(status == ForwardingServer.OK) r.done.set(position);
+                        else if(status == ForwardingServer.NOT_LEADER) {
+                            // leadership moved and nothing was committed, the request goes to whoever leads next
+                            broken = true;
+                            retry(r);
+                        } else if(status == ForwardingServer.UNKNOWN) {
+                            r.done.setException(new CommitOutcomeUnknownException("forwarded commit on " + address + ": " + message, null));
+                        } else r.done.setException(new RuntimeException("forwarded commit failed on " + address + ": " + message));
+                    }
+                    // a connection out of use is closed once the replies it waits for are in
+                    synchronized (out) {
+                        if(broken && pending.isEmpty()) return;
+                    }
+                }
+            } catch(IOException e) {
+                logger.debug("forwarding connection to " + address + " closed", e);
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            synchronized (out) {
+                broken = true;
+            }
+            try { socket.close(); } catch(IOException i) {}
+            for(Long id: pending.keySet()) {
+                Request r = pending.remove(id);
+                if(r != null) r.done.setException(new CommitOutcomeUnknownException("connection to leader " + address + " lost", null));
+            }
+        }
+    }
+
+    Forwarder(Env env) {
+        this.env = env;
+        retries = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("rlmdb-forwarder-retry-" + env.getId()).setDaemon(true).build());
+    }
+
+    ListenableFuture<Long> position() {
+        return forward(null);
+    }
+
+    ListenableFuture<Long> forward(List<byte[]> entries) {
+        Request r = new Request(ids.incrementAndGet(), entries);
+        send(r);
+        return r.done;
+    }
+
+    private void send(Request r) {
+        r.attempts++;
+        while(true) {
+            Connection c;
+            try {
+                c = connection();
+            } catch(NotLeaderException | IOException e) {
+                // no leader yet, or one not reachable while leadership moves
+                retry(r);
+                return;
+            } catch(Exception e) {
+                r.done.setException(e);
+                return;
+            }
+            try {
+                if(c.send(r)) return;
+            } catch(IOException e) {
+                // the request may have gone out in part or whole on this connection, which is of no further use
+                if(c.pending.remove(r.id) != null) r.done.setException(new CommitOutcomeUnknownException("sending to leader " + c.address + " failed", e));
+                c.close();
+                return;
+            } catch(Exception e) {
+                r.done.setException(e);
+                return;
+            }
+        }
+    }
+
+    // backs off a little longer on every attempt while a leader is being elected
+    private void retry(final Request r) {
+        if(r.attempts >= MAX_ATTEMPTS) {
+            r.done.setException(new NotLeaderException());
+            return;
+        }
+        waiting.add(r);
+        try {
+            retries.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if(waiting.remove(r)) send(r);
+                }
+            }, RETRY_DELAY * r.attempts, TimeUnit.MILLISECONDS);
+        } catch(RejectedExecutionException e) {
+            if(waiting.remove(r)) r.done.setException(new IllegalStateException("environment closed"));
+        }
+    }
+
+    private synchronized Connection connection() throws Exception {
+        if(closed) throw new IllegalStateException("environment closed");
+        if(connection != null && !connection.broken) return connection;
+        String address = env.leaderAddress();
+        if(address == null) throw new NotLeaderException();
+        // the replaced connection closes itself once its replies are in
+        if(connection != null) retire(connection);
+        connection = new Connection(address);
+        logger.info("forwarding writes to leader at " + address);
+        return connection;
+    }
+
+    private static void retire(Connection c) {
+        synchronized (c.out) {
+            c.broken = true;
+            if(!c.pending.isEmpty()) return;
+        }
+        c.close();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        retries.shutdownNow();
+        for(Request r: waiting)
+            if(waiting.remove(r)) r.done.setException(new IllegalStateException("environment closed"));
+        if(connection != null) connection.close();
+    }
+}
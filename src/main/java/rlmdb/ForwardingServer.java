@@ -0,0 +1,162 @@
+package rlmdb;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// accepts write transactions forwarded by followers and commits them while this node leads.
+//   request: frame length(4) request id(8) entry count(4) [entry length(4) entry]...
+//   reply:   request id(8) status(1) [position(8) when ok, message when failed or unknown]
+// an entry count of -1 asks for the last committed position instead
+// requests are pipelined, replies come back as commits complete and may be out of order
+class ForwardingServer implements Runnable, Closeable {
+
+    private static final Logger logger = Logger.getLogger(ForwardingServer.class);
+
+    static final byte OK = 0x00;
+    static final byte NOT_LEADER = 0x01;
+    static final byte FAILED = 0x02;
+    static final byte UNKNOWN = 0x03;
+
+    static final int POSITION = -1;
+
+    static final int MAX_FRAME = 256 * 1024 * 1024;
+
+    private final Env env;
+    private final ServerSocket server;
+    private final Thread thread;
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private volatile boolean running = true;
+
+    ForwardingServer(Env env, String host, int port) throws IOException {
+        this.env = env;
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(host, port));
+        thread = new Thread(this, "rlmdb-forwarding-" + env.getId());
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while(running) try {
+            final Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            connections.add(socket);
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "rlmdb-forwarded-" + socket.getRemoteSocketAddress());
+            t.setDaemon(true);
+            t.start();
+        } catch(IOException e) {
+            if(running) logger.warn("forwarding accept problem", e);
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while(running) {
+                int length = in.readInt();
+                if(length < 12 || length > MAX_FRAME) throw new IOException("bad forwarded frame length " + length);
+                final long id = in.readLong();
+                int count = in.readInt();
+                if(count == POSITION) {
+                    if(env.leader()) reply(out, id, env.confirmPosition());
+                    else reply(out, id, NOT_LEADER, -1, null);
+                    continue;
+                }
+                if(count < 0) throw new IOException("bad forwarded entry count " + count);
+                List<byte[]> entries = new ArrayList<>(count);
+                for(int i = 0; i < count; i++) {
+                    int size = in.readInt();
+                    if(size < 0 || size > length) throw new IOException("bad forwarded entry length " + size);
+                    byte[] entry = new byte[size];
+                    in.readFully(entry);
+                    entries.add(entry);
+                }
+                if(!env.leader()) {
+                    reply(out, id, NOT_LEADER, -1, null);
+                    continue;
+                }
+                try {
+                    reply(out, id, env.commitEntries(entries));
+                } catch(NotLeaderException e) {
+                    reply(out, id, NOT_LEADER, -1, null);
+                } catch(RuntimeException e) {
+                    reply(out, id, FAILED, -1, e);
+                }
+            }
+        } catch(EOFException | SocketException e) {
+            logger.debug("forwarding connection " + socket.getRemoteSocketAddress() + " closed");
+        } catch(IOException e) {
+            logger.warn("forwarding connection problem", e);
+        } finally {
+            connections.remove(socket);
+            try { socket.close(); } catch(IOException i) {}
+        }
+    }
+
+    private static void reply(final DataOutputStream out, final long id, ListenableFuture<Long> position) {
+        Futures.addCallback(position, new FutureCallback<Long>() {
+            @Override
+            public void onSuccess(Long position) {
+                reply(out, id, OK, position, null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                reply(out, id, t instanceof NotLeaderException ? NOT_LEADER : t instanceof CommitOutcomeUnknownException ? UNKNOWN : FAILED, -1, t);
+            }
+        });
+    }
+
+    private static void reply(DataOutputStream out, long id, byte status, long position, Throwable t) {
+        synchronized (out) {
+            try {
+                out.writeLong(id);
+                out.writeByte(status);
+                if(status == OK) out.writeLong(position);
+                if(status == FAILED || status == UNKNOWN) out.writeUTF(String.valueOf(t.getMessage()));
+                out.flush();
+            } catch(IOException e) {
+                logger.debug("reply to forwarded request " + id + " lost", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try { server.close(); } catch(IOException i) {}
+        for(Socket socket: connections) try { socket.close(); } catch(IOException i) {}
+        try { thread.join(); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+    }
+}
@@ -0,0 +1,123 @@
+package rlmdb;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+class GroupCommitter implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(GroupCommitter.class);
+
+    private final Env env;
+    private final long windowMillis;
+    private final int maxBytes;
+    private final int maxTransactions;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    // the group being collected, handed back by stop() when the window is cut short
+    private final List<Pending> group = new ArrayList<>();
+
+    private boolean running = true;
+    // queued by stop(), the group being collected is left unwritten while one being written completes
+    private static final Pending STOP = new Pending(Collections.<byte[]>emptyList(), Collections.<Batch.Op>emptyList());
+
+    static class Pending {
+        final List<byte[]> entries;
+        final List<Batch.Op> ops;
+        final SettableFuture<Long> done = SettableFuture.create();
+        final int bytes;
+
+        Pending(List<byte[]> entries, List<Batch.Op> ops) {
+            this.entries = entries;
+            this.ops = ops;
+            int n = 0;
+            for(byte[] e: entries) n += e.length;
+            bytes = n;
+        }
+    }
+
+    GroupCommitter(Env env, long windowMillis, int maxBytes, int maxTransactions) {
+        this.env = env;
+        this.windowMillis = windowMillis;
+        this.maxBytes = maxBytes;
+        this.maxTransactions = maxTransactions;
+        thread = new Thread(this, "rlmdb-committer-" + env.getId());
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // stops taking transactions and hands back the ones not written yet
+    List<Pending> stop() {
+        synchronized (this) {
+            if(running) queue.add(STOP);
+            running = false;
+        }
+        try { thread.join(); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+        List<Pending> unwritten = new ArrayList<>(group);
+        queue.drainTo(unwritten);
+        unwritten.remove(STOP);
+        return unwritten;
+    }
+
+    // false once stopped, every accepted transaction is either written or handed back by stop()
+    synchronized boolean offer(Pending p) {
+        if(!running) return false;
+        queue.add(p);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while(true) try {
+            Pending p = queue.take();
+            if(p == STOP) return;
+            int bytes = p.bytes;
+            group.add(p);
+            long deadline = System.currentTimeMillis() + windowMillis;
+            while(group.size() < maxTransactions && bytes < maxBytes) {
+                p = queue.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                if(p == STOP) return;
+                if(p == null) break;
+                bytes += p.bytes;
+                group.add(p);
+            }
+            List<Pending> writing = new ArrayList<>(group);
+            group.clear();
+            write(writing);
+        } catch(InterruptedException ie) {
+            return;
+        }
+    }
+
+    private void write(List<Pending> group) throws InterruptedException {
+        try {
+            List<byte[]> entries = new ArrayList<>();
+            List<Batch.Op> ops = new ArrayList<>();
+            for(Pending p: group) {
+                entries.addAll(p.entries);
+                ops.addAll(p.ops);
+            }
+            long position = env.writeLedger(entries, ops);
+            for(Pending p: group) p.done.set(position);
+            logger.debug("group committed " + group.size() + " transactions");
+        } catch(InterruptedException ie) {
+            fail(group, ie);
+            throw ie;
+        } catch(Exception e) {
+            fail(group, e);
+        }
+    }
+
+    private void fail(List<Pending> group, Exception e) {
+        for(Pending p: group) p.done.setException(e);
+    }
+}
@@ -0,0 +1,94 @@
+package rlmdb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// lock free log-linear histogram: every power of two is split in 8 buckets, so percentiles are within 12.5%
+class Histogram implements HistogramMXBean {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        if(value < 0) value = 0;
+        buckets.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while(value > (m = max.get()) && !max.compareAndSet(m, value));
+    }
+
+    static int index(long value) {
+        if(value < SUB_BUCKETS) return (int)value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        return (msb - SUB_BITS + 1) * SUB_BUCKETS + (int)((value >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    static long highest(int index) {
+        if(index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    long percentile(double p) {
+        long total = count.get();
+        if(total == 0) return 0;
+        long target = Math.max(1, (long)Math.ceil(p * total));
+        long seen = 0;
+        for(int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if(seen >= target) return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double)sum.get() / n;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public long get50thPercentile() {
+        return percentile(0.5);
+    }
+
+    @Override
+    public long get90thPercentile() {
+        return percentile(0.9);
+    }
+
+    @Override
+    public long get99thPercentile() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public long get999thPercentile() {
+        return percentile(0.999);
+    }
+
+    @Override
+    public void reset() {
+        for(int i = 0; i < buckets.length(); i++) buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,20 @@
+package rlmdb;
+
+public class KeyValue {
+
+    private final byte[] key;
+    private final byte[] value;
+
+    public KeyValue(byte[] key, byte[] value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public byte[] getKey() {
+        return key;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,162 @@
+package rlmdb;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.bookkeeper.client.AsyncCallback;
+import org.apache.bookkeeper.client.BKException;
+import org.apache.bookkeeper.client.BookKeeper;
+import org.apache.bookkeeper.client.LedgerEntry;
+import org.apache.bookkeeper.client.LedgerHandle;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// fetches the ledgers of a run of log records ahead of time, a bounded number and size of them at once,
+// and hands them out strictly in log order
+class LogReader implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(LogReader.class);
+
+    private final BookKeeper bookkeeper;
+    private final Iterator<LogRecord> records;
+    private final int maxLedgers;
+    private final long maxBytes;
+    private final Deque<ListenableFuture<Ledger>> window = new ArrayDeque<>();
+    private final AtomicLong buffered = new AtomicLong();
+
+    static class Ledger {
+        final LogRecord record;
+        final LedgerHandle lh;
+        final List<Batch.Op> ops;
+        final long bytes;
+
+        Ledger(LogRecord record, LedgerHandle lh, List<Batch.Op> ops, long bytes) {
+            this.record = record;
+            this.lh = lh;
+            this.ops = ops;
+            this.bytes = bytes;
+        }
+
+        // bulk ledgers are only fetched up to their first entry, the rest is read while applying
+        boolean isBulk() {
+            return !ops.isEmpty() && ops.get(0).type == Batch.APPEND;
+        }
+    }
+
+    LogReader(BookKeeper bookkeeper, Iterator<LogRecord> records, int maxLedgers, long maxBytes) {
+        this.bookkeeper = bookkeeper;
+        this.records = records;
+        this.maxLedgers = maxLedgers;
+        this.maxBytes = maxBytes;
+    }
+
+    // the next ledger in log order or null at the end of the records. hand it back with done()
+    Ledger next() throws Exception {
+        while(window.size() < maxLedgers && buffered.get() < maxBytes && records.hasNext()) window.add(fetch(records.next()));
+        ListenableFuture<Ledger> next = window.poll();
+        if(next == null) return null;
+        try {
+            return next.get();
+        } catch(ExecutionException ee) {
+            if(ee.getCause() instanceof Exception) throw (Exception)ee.getCause();
+            throw ee;
+        }
+    }
+
+    void done(Ledger ledger) {
+        buffered.addAndGet(-ledger.bytes);
+        try { ledger.lh.close(); } catch(Exception e) { logger.debug("", e); }
+    }
+
+    @Override
+    public void close() {
+        for(ListenableFuture<Ledger> f: window) Futures.addCallback(f, new FutureCallback<Ledger>() {
+            @Override
+            public void onSuccess(Ledger ledger) {
+                done(ledger);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {}
+        });
+        window.clear();
+    }
+
+    private ListenableFuture<Ledger> fetch(final LogRecord record) {
+        final SettableFuture<Ledger> f = SettableFuture.create();
+        // committed ledgers are closed already, there is nothing to recover
+        bookkeeper.asyncOpenLedgerNoRecovery(record.ledgerId, BookKeeper.DigestType.MAC, new byte[]{0x00}, new AsyncCallback.OpenCallback() {
+            @Override
+            public void openComplete(int rc, final LedgerHandle lh, Object ctx) {
+                if(rc != BKException.Code.OK) {
+                    f.setException(BKException.create(rc));
+                    return;
+                }
+                final long last = lh.getLastAddConfirmed();
+                if(last < 0) {
+                    f.set(new Ledger(record, lh, new ArrayList<Batch.Op>(), 0));
+                    return;
+                }
+                lh.asyncReadEntries(0, 0, new AsyncCallback.ReadCallback() {
+                    @Override
+                    public void readComplete(int rc, LedgerHandle lh, Enumeration<LedgerEntry> seq, Object ctx) {
+                        final List<Batch.Op> ops = new ArrayList<>();
+                        final long first;
+                        try {
+                            first = decode(rc, seq, ops);
+                        } catch(Exception e) {
+                            fail(f, lh, e);
+                            return;
+                        }
+                        if(last == 0 || ops.get(0).type == Batch.APPEND) {
+                            complete(f, new Ledger(record, lh, ops, first));
+                            return;
+                        }
+                        lh.asyncReadEntries(1, last, new AsyncCallback.ReadCallback() {
+                            @Override
+                            public void readComplete(int rc, LedgerHandle lh, Enumeration<LedgerEntry> seq, Object ctx) {
+                                try {
+                                    complete(f, new Ledger(record, lh, ops, first + decode(rc, seq, ops)));
+                                } catch(Exception e) {
+                                    fail(f, lh, e);
+                                }
+                            }
+                        }, null);
+                    }
+                }, null);
+            }
+        }, null);
+        return f;
+    }
+
+    private void complete(SettableFuture<Ledger> f, Ledger ledger) {
+        buffered.addAndGet(ledger.bytes);
+        f.set(ledger);
+    }
+
+    private static void fail(SettableFuture<Ledger> f, LedgerHandle lh, Exception e) {
+        try { lh.close(); } catch(Exception i) {}
+        f.setException(e);
+    }
+
+    private static long decode(int rc, Enumeration<LedgerEntry> seq, List<Batch.Op> ops) throws BKException {
+        if(rc != BKException.Code.OK) throw BKException.create(rc);
+        long bytes = 0;
+        while(seq.hasMoreElements()) {
+            byte[] entry = seq.nextElement().getEntry();
+            bytes += entry.length;
+            ops.addAll(Batch.decode(entry));
+        }
+        return bytes;
+    }
+}
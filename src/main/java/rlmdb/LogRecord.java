@@ -0,0 +1,75 @@
+package rlmdb;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+class LogRecord implements Comparable<LogRecord> {
+
+    // records are grouped in segment nodes of this many positions so no listing ever grows with the log
+    static final long SEGMENT = 1000;
+
+    final long position;
+    final long ledgerId;
+    final String name;
+
+    private LogRecord(long position, long ledgerId, String name) {
+        this.position = position;
+        this.ledgerId = ledgerId;
+        this.name = name;
+    }
+
+    static long segment(long position) {
+        return position / SEGMENT;
+    }
+
+    static String segmentPath(String indexPath, long segment) {
+        return indexPath + "/" + String.format("%016x", segment);
+    }
+
+    // record nodes are named <position>-<ledger id> inside the segment of their position
+    static String path(String indexPath, long position, long ledgerId) {
+        return segmentPath(indexPath, segment(position)) + "/" + String.format("%016x-%016x", position, ledgerId);
+    }
+
+    String path(String indexPath) {
+        return segmentPath(indexPath, segment(position)) + "/" + name;
+    }
+
+    static LogRecord parse(String name) {
+        int dash = name.indexOf('-');
+        return new LogRecord(Long.parseLong(name.substring(0, dash), 16), Long.parseLong(name.substring(dash + 1), 16), name);
+    }
+
+    static List<LogRecord> parse(Collection<String> names) {
+        List<LogRecord> records = new ArrayList<>(names.size());
+        for(String name: names) records.add(parse(name));
+        Collections.sort(records);
+        return records;
+    }
+
+    // the records from position from on, listing only the segments up to the one holding position to.
+    // compacted segments are gone and skipped
+    static List<LogRecord> read(CuratorFramework curator, String indexPath, long from, long to) throws Exception {
+        List<LogRecord> records = new ArrayList<>();
+        for(long segment = segment(Math.max(from, 0)); segment <= segment(to); segment++) try {
+            for(LogRecord record: parse(curator.getChildren().forPath(segmentPath(indexPath, segment))))
+                if(record.position >= from) records.add(record);
+        } catch(KeeperException.NoNodeException e) {}
+        return records;
+    }
+
+    @Override
+    public int compareTo(LogRecord o) {
+        return Long.compare(position, o.position);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,67 @@
+package rlmdb;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.NodeCache;
+import org.apache.curator.framework.recipes.cache.NodeCacheListener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+// watches the log position counter, every commit bumps it
+class LogWatcher implements NodeCacheListener, Closeable {
+
+    private final CuratorFramework curator;
+    private final NodeCache cache;
+
+    private long version = 0;
+
+    LogWatcher(CuratorFramework curator) throws Exception {
+        this.curator = curator;
+        cache = new NodeCache(curator, Env.LOG_POSITION_PATH);
+        cache.getListenable().addListener(this);
+        cache.start(true);
+    }
+
+    @Override
+    public synchronized void nodeChanged() {
+        version++;
+        notifyAll();
+    }
+
+    // the last committed position as last seen by the watch
+    long end() {
+        ChildData data = cache.getCurrentData();
+        return data == null || data.getData() == null || data.getData().length == 0 ? -1 : Env.byteArrayToLong(data.getData());
+    }
+
+    List<LogRecord> current(long from) throws Exception {
+        return LogRecord.read(curator, Env.LOG_INDEX_PATH, from, end());
+    }
+
+    List<LogRecord> read(long from) throws Exception {
+        byte[] end = curator.getData().forPath(Env.LOG_POSITION_PATH);
+        return LogRecord.read(curator, Env.LOG_INDEX_PATH, from, end.length == 0 ? -1 : Env.byteArrayToLong(end));
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    // waits until a record is appended past the seen version or the fallback poll interval expires
+    synchronized long awaitChange(long seen, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while(version == seen && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return version;
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.close();
+    }
+}
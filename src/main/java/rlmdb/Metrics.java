@@ -0,0 +1,154 @@
+package rlmdb;
+
+import org.fusesource.lmdbjni.EnvInfo;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// latencies are in nanoseconds, registered as rlmdb:type=Latency beans next to the rlmdb:type=Env gauges
+class Metrics implements MetricsMXBean {
+
+    private final Env env;
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    final Histogram createLedger = new Histogram();
+    final Histogram add = new Histogram();
+    final Histogram commitLedger = new Histogram();
+    final Histogram commitZooKeeper = new Histogram();
+    final Histogram replayApply = new Histogram();
+    final Histogram read = new Histogram();
+    final Histogram transactionBytes = new Histogram();
+
+    final AtomicLong committedTransactions = new AtomicLong();
+    final AtomicLong failedCommits = new AtomicLong();
+    final AtomicLong replayedRecords = new AtomicLong();
+    final AtomicLong replayedOperations = new AtomicLong();
+    final AtomicLong mapGrowths = new AtomicLong();
+
+    Metrics(Env env) {
+        this.env = env;
+    }
+
+    void register() throws JMException {
+        String id = Long.toString(env.getId());
+        register(new ObjectName("rlmdb:type=Env,id=" + id), this);
+        register(new ObjectName("rlmdb:type=Latency,id=" + id + ",name=createLedger"), createLedger);
+        register(new ObjectName("rlmdb:type=Latency,id=" + id + ",name=add"), add);
+        register(new ObjectName("rlmdb:type=Latency,id=" + id + ",name=commitLedger"), commitLedger);
+        register(new ObjectName("rlmdb:type=Latency,id=" + id + ",name=commitZooKeeper"), commitZooKeeper);
+        register(new ObjectName("rlmdb:type=Latency,id=" + id + ",name=replayApply"), replayApply);
+        register(new ObjectName("rlmdb:type=Latency,id=" + id + ",name=read"), read);
+        register(new ObjectName("rlmdb:type=Size,id=" + id + ",name=transactionBytes"), transactionBytes);
+    }
+
+    private void register(ObjectName name, Object bean) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if(server.isRegistered(name)) server.unregisterMBean(name);
+        server.registerMBean(bean, name);
+        registered.add(name);
+    }
+
+    void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName name: registered) try { server.unregisterMBean(name); } catch(JMException e) {}
+        registered.clear();
+    }
+
+    @Override
+    public boolean isLeader() {
+        return env.leader();
+    }
+
+    @Override
+    public boolean isReady() {
+        return env.isReady();
+    }
+
+    @Override
+    public long getEpoch() {
+        return env.getEpoch();
+    }
+
+    @Override
+    public long getAppliedPosition() {
+        return env.getAppliedPosition();
+    }
+
+    @Override
+    public Map<Long, Long> getReplicaLag() throws Exception {
+        long head = env.logEnd();
+        Map<Long, Long> lag = new TreeMap<>();
+        for(Map.Entry<Long, Long> watermark: env.watermarks().entrySet())
+            lag.put(watermark.getKey(), Math.max(0, head - watermark.getValue()));
+        return lag;
+    }
+
+    @Override
+    public long getCommittedTransactions() {
+        return committedTransactions.get();
+    }
+
+    @Override
+    public long getFailedCommits() {
+        return failedCommits.get();
+    }
+
+    @Override
+    public long getReplayedRecords() {
+        return replayedRecords.get();
+    }
+
+    @Override
+    public long getReplayedOperations() {
+        return replayedOperations.get();
+    }
+
+    // info and stat read the meta pages inside the map, so they wait out a resize like any read
+    @Override
+    public long getMapSize() {
+        env.enterMap();
+        try {
+            return env.env.info().getMapSize();
+        } finally {
+            env.exitMap();
+        }
+    }
+
+    @Override
+    public long getMapUsed() {
+        env.enterMap();
+        try {
+            EnvInfo info = env.env.info();
+            return (info.getLastPgNo() + 1) * env.env.stat().getPsize();
+        } finally {
+            env.exitMap();
+        }
+    }
+
+    @Override
+    public long getMapGrowths() {
+        return mapGrowths.get();
+    }
+
+    @Override
+    public long getReaderSlotsUsed() {
+        return env.getReaderSlotsUsed();
+    }
+
+    @Override
+    public long getReadPoolHits() {
+        return env.getReadPoolHits();
+    }
+
+    @Override
+    public long getReadPoolMisses() {
+        return env.getReadPoolMisses();
+    }
+}
@@ -0,0 +1,37 @@
+package rlmdb;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+
+    boolean isLeader();
+
+    boolean isReady();
+
+    long getEpoch();
+
+    long getAppliedPosition();
+
+    // log positions each replica's watermark is behind the end of the log
+    Map<Long, Long> getReplicaLag() throws Exception;
+
+    long getCommittedTransactions();
+
+    long getFailedCommits();
+
+    long getReplayedRecords();
+
+    long getReplayedOperations();
+
+    long getMapSize();
+
+    long getMapUsed();
+
+    long getMapGrowths();
+
+    long getReaderSlotsUsed();
+
+    long getReadPoolHits();
+
+    long getReadPoolMisses();
+}
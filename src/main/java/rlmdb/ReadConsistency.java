@@ -0,0 +1,39 @@
+package rlmdb;
+
+import java.util.concurrent.TimeUnit;
+
+// how up to date a read has to be.
+// LOCAL reads whatever this replica applied so far, atLeast waits for a position returned by a commit (read your writes)
+// and LINEARIZABLE waits for everything the leader committed before the read started. the leader has no time based lease,
+// it confirms through zookeeper that no newer epoch started after it read its commit position.
+// the timeout covers both asking the leader and waiting for the position to be applied.
+// a read transaction only sees what was applied when it was opened, so it is opened after Env.await
+public class ReadConsistency {
+
+    private static final long DEFAULT_TIMEOUT = 10000;
+
+    public static final ReadConsistency LOCAL = new ReadConsistency(-1, 0, false);
+    public static final ReadConsistency LINEARIZABLE = linearizable(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+
+    final long position;
+    final long timeoutMillis;
+    final boolean linearizable;
+
+    private ReadConsistency(long position, long timeoutMillis, boolean linearizable) {
+        this.position = position;
+        this.timeoutMillis = timeoutMillis;
+        this.linearizable = linearizable;
+    }
+
+    public static ReadConsistency atLeast(long position, long timeout, TimeUnit unit) {
+        return new ReadConsistency(position, unit.toMillis(timeout), false);
+    }
+
+    public static ReadConsistency linearizable(long timeout, TimeUnit unit) {
+        return new ReadConsistency(-1, unit.toMillis(timeout), true);
+    }
+
+    boolean isLocal() {
+        return position < 0 && !linearizable;
+    }
+}
@@ -1,29 +1,74 @@
 package rlmdb;
 
-import java.io.IOException;
-
 public class ReadTransaction extends Transaction {
 
     final org.fusesource.lmdbjni.Transaction tx;
 
+    private final boolean pooled;
+    private final Thread owner;
+    // holds off map growth while the snapshot is live, see Env.growMap
+    private boolean active;
+
     ReadTransaction(Env env) {
+        this(env, false);
+    }
+
+    ReadTransaction(Env env, boolean pooled) {
         super(env);
-        tx = Env.env.createReadTransaction();
+        env.enterMap();
+        try {
+            tx = env.env.createReadTransaction();
+        } catch(RuntimeException e) {
+            env.exitMap();
+            throw e;
+        }
+        active = true;
+        this.pooled = pooled;
+        owner = Thread.currentThread();
+    }
+
+    void renew() {
+        env.enterMap();
+        active = true;
+        tx.renew();
+    }
+
+    void reset() {
+        tx.reset();
+        inactive();
+    }
+
+    private void inactive() {
+        if(!active) return;
+        active = false;
+        env.exitMap();
     }
 
+    // pooled transactions closed by the acquiring thread are reset and kept for its next acquire
     @Override
     public void close() {
+        if(pooled && Thread.currentThread() == owner && env.releaseReadTransaction(this)) return;
+        if(pooled) env.discardReadTransaction(this);
         tx.close();
+        inactive();
     }
 
     @Override
     public void commit() {
-        tx.commit();
+        if(pooled) close();
+        else {
+            tx.commit();
+            inactive();
+        }
     }
 
     @Override
     public void abort() {
-        tx.abort();
+        if(pooled) close();
+        else {
+            tx.abort();
+            inactive();
+        }
     }
 
     @Override
@@ -0,0 +1,212 @@
+package rlmdb;
+
+import org.apache.bookkeeper.client.LedgerEntry;
+import org.apache.bookkeeper.client.LedgerHandle;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.NodeCache;
+import org.apache.log4j.Logger;
+import org.fusesource.lmdbjni.Constants;
+import org.fusesource.lmdbjni.LMDBException;
+import org.fusesource.lmdbjni.Transaction;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+class Replayer implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(Replayer.class);
+
+    private final Env env;
+    private final Thread thread;
+    private final LogWatcher watcher;
+    private final NodeCache truncated;
+
+    private static final int BULK_READ_ENTRIES = 64;
+    private static final long MIN_BACKOFF = 100;
+
+    private volatile boolean running = true;
+
+    Replayer(Env env) {
+        this.env = env;
+        try {
+            watcher = new LogWatcher(env.curator);
+            truncated = new NodeCache(env.curator, Env.LOG_TRUNCATED_PATH);
+            truncated.start(true);
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        thread = new Thread(this, "rlmdb-replayer-" + env.getId());
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        thread.interrupt();
+        try { thread.join(); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+        try { watcher.close(); } catch (IOException e) { logger.warn("", e); }
+        try { truncated.close(); } catch (IOException e) { logger.warn("", e); }
+    }
+
+    @Override
+    public void run() {
+        long seen = -1;
+        long backoff = 0;
+        while(running) try {
+            long version = watcher.awaitChange(seen, env.getReplayPollInterval());
+            // on a poll timeout go to zookeeper in case a notification was missed
+            // the leader applies its own commits
+            if(!env.caughtUp()) {
+                long from = env.appliedPosition + 1;
+                replay(version == seen ? watcher.read(from) : watcher.current(from));
+            }
+            env.ready();
+            seen = version;
+            backoff = 0;
+        } catch(InterruptedException ie) {
+            return;
+        } catch(Exception e) {
+            if(!running) return;
+            // a failing replay would otherwise retry as fast as it fails
+            backoff = Math.min(Math.max(2 * backoff, MIN_BACKOFF), env.getReplayPollInterval());
+            logger.warn("replay problem, retrying in " + backoff + "ms", e);
+            try { Thread.sleep(backoff); } catch(InterruptedException ie) { return; }
+        }
+    }
+
+    // brings the local env up to the current end of the log, used before taking leadership
+    void catchUp() throws Exception {
+        replay(watcher.read(env.appliedPosition + 1));
+    }
+
+    void replay(List<LogRecord> log) throws Exception {
+        long truncatedPosition = truncatedPosition();
+        if(env.appliedPosition < truncatedPosition)
+            throw new IllegalStateException("log truncated up to position " + truncatedPosition + " before position " + env.appliedPosition + " was applied here. restart to restore from a snapshot");
+        // a commit applied locally holds applyLock until its position is recorded, so no record it covers is fetched again
+        List<LogRecord> pending = new ArrayList<>();
+        synchronized (env.applyLock) {
+            for(LogRecord record: log) if(record.position > env.appliedPosition) pending.add(record);
+        }
+        if(pending.isEmpty()) return;
+        try(LogReader reader = new LogReader(env.bookkeeper, pending.iterator(), env.getReplayPrefetch(), env.getReplayPrefetchBytes())) {
+            LogReader.Ledger ledger;
+            while(running && (ledger = reader.next()) != null) try {
+                if(ledger.isBulk()) applyBulk(ledger.record, ledger.lh, ledger.ops);
+                else apply(ledger.record, ledger.ops);
+            } finally {
+                reader.done(ledger);
+            }
+        }
+    }
+
+    private long truncatedPosition() {
+        ChildData data = truncated.getCurrentData();
+        return data == null || data.getData() == null || data.getData().length == 0 ? -1 : Env.byteArrayToLong(data.getData());
+    }
+
+    private void apply(LogRecord record, List<Batch.Op> ops) throws Exception {
+        synchronized (env.applyLock) {
+            if(record.position <= env.appliedPosition) return;
+            long start = System.nanoTime();
+            env.applyOps(ops, record.position);
+            env.applied(record.position);
+            applied(start, ops.size());
+        }
+        logger.debug("applied " + record + " with " + ops.size() + " operations");
+    }
+
+    // bulk ledgers are streamed through MDB_APPEND in chunked lmdb transactions, each recording how far the load got
+    // so a restart goes on from there. entries are read without applyLock, commits made meanwhile are left to replay
+    private void applyBulk(LogRecord record, LedgerHandle lh, List<Batch.Op> ops) throws Exception {
+        synchronized (env.applyLock) {
+            if(record.position <= env.appliedPosition) return;
+        }
+        long start = System.nanoTime();
+        org.fusesource.lmdbjni.Database db = env.database(ops.get(0).db);
+        long last = lh.getLastAddConfirmed();
+        long[] progress = env.bulkProgress(record.position);
+        long next = progress[0];
+        long count = progress[1];
+        while(running) {
+            List<Batch.Op> chunk = new ArrayList<>();
+            long bytes = 0;
+            if(next == 0) {
+                chunk.addAll(ops);
+                bytes += bytes(ops);
+                next = 1;
+            }
+            while(next <= last && bytes < env.getBulkApplyChunkSize()) {
+                long to = Math.min(last, next + BULK_READ_ENTRIES - 1);
+                List<Batch.Op> read = read(lh, next, to);
+                chunk.addAll(read);
+                bytes += bytes(read);
+                next = to + 1;
+            }
+            synchronized (env.applyLock) {
+                if(record.position <= env.appliedPosition) return;
+                // starting a chunk over after growing the map is safe, its txn was aborted
+                while(true) try {
+                    count += writeBulk(db, chunk, record.position, next, count, next > last);
+                    break;
+                } catch(LMDBException e) {
+                    if(!env.growMap(e)) throw e;
+                }
+                if(next > last) {
+                    env.applied(record.position);
+                    applied(start, count);
+                    logger.debug("bulk applied " + record + " with " + count + " operations");
+                    return;
+                }
+            }
+        }
+    }
+
+    private long writeBulk(org.fusesource.lmdbjni.Database db, List<Batch.Op> ops, long position, long next, long count, boolean last) {
+        long n = 0;
+        try(Transaction tx = env.env.createWriteTransaction()) {
+            for(Batch.Op op: ops) {
+                if(op.type == Batch.TXN || db == null) continue;
+                append(db, tx, op);
+                n++;
+            }
+            env.bulkProgress(tx, position, next, count + n);
+            if(last) env.applied(tx, position);
+            tx.commit();
+        }
+        return n;
+    }
+
+    private static long bytes(List<Batch.Op> ops) {
+        long bytes = 0;
+        for(Batch.Op op: ops) if(op.type != Batch.TXN) bytes += op.key.length + op.value.length;
+        return bytes;
+    }
+
+    private void applied(long start, long operations) {
+        env.metrics.replayApply.record(System.nanoTime() - start);
+        env.metrics.replayedRecords.incrementAndGet();
+        env.metrics.replayedOperations.addAndGet(operations);
+    }
+
+    private static void append(org.fusesource.lmdbjni.Database db, Transaction tx, Batch.Op op) {
+        try {
+            db.put(tx, op.key, op.value, Constants.APPEND);
+        } catch(LMDBException e) {
+            if(e.getErrorCode() != LMDBException.KEYEXIST) throw e;
+            db.put(tx, op.key, op.value);
+        }
+    }
+
+    static List<Batch.Op> read(LedgerHandle lh, long first, long last) throws Exception {
+        List<Batch.Op> ops = new ArrayList<>();
+        Enumeration<LedgerEntry> e = lh.readEntries(first, last);
+        while(e.hasMoreElements()) ops.addAll(Batch.decode(e.nextElement().getEntry()));
+        return ops;
+    }
+}
@@ -0,0 +1,100 @@
+package rlmdb;
+
+import org.fusesource.lmdbjni.BufferCursor;
+import org.fusesource.lmdbjni.DirectBuffer;
+import org.fusesource.lmdbjni.Entry;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// lazily advancing cursor over [from, to) in key order, or reverse key order. must be closed before its read transaction
+public class Scan implements Iterator<Entry>, Iterable<Entry>, Closeable {
+
+    private static final int PENDING = 0;
+    private static final int READY = 1;
+    private static final int DONE = 2;
+
+    private final BufferCursor cursor;
+    private final byte[] from;
+    private final byte[] to;
+    private final boolean reverse;
+    private final boolean keysOnly;
+
+    private boolean started = false;
+    private int state = PENDING;
+
+    Scan(BufferCursor cursor, byte[] from, byte[] to, boolean reverse, boolean keysOnly) {
+        this.cursor = cursor;
+        this.from = from;
+        this.to = to;
+        this.reverse = reverse;
+        this.keysOnly = keysOnly;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(state == PENDING) {
+            boolean found = started ? (reverse ? cursor.prev() : cursor.next()) : start();
+            started = true;
+            state = found && inRange() ? READY : DONE;
+        }
+        return state == READY;
+    }
+
+    @Override
+    public Entry next() {
+        if(!hasNext()) throw new NoSuchElementException();
+        state = PENDING;
+        return new Entry(cursor.keyBytes(), keysOnly ? null : cursor.valBytes());
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        return this;
+    }
+
+    @Override
+    public void close() {
+        cursor.close();
+    }
+
+    private boolean start() {
+        if(!reverse) return from == null ? cursor.first() : cursor.seek(from);
+        if(to == null) return cursor.last();
+        // lands on the first key >= to, the one before it is the first in range
+        return cursor.seek(to) ? cursor.prev() : cursor.last();
+    }
+
+    private boolean inRange() {
+        if(reverse) return from == null || compare(cursor.keyBuffer(), from) >= 0;
+        return to == null || compare(cursor.keyBuffer(), to) < 0;
+    }
+
+    private static int compare(DirectBuffer key, byte[] bound) {
+        int n = Math.min(key.capacity(), bound.length);
+        for(int i = 0; i < n; i++) {
+            int c = (key.getByte(i) & 0xff) - (bound[i] & 0xff);
+            if(c != 0) return c;
+        }
+        return key.capacity() - bound.length;
+    }
+
+    // smallest key greater than every key starting with prefix, null when there is none
+    static byte[] successor(byte[] prefix) {
+        for(int i = prefix.length - 1; i >= 0; i--) {
+            if(prefix[i] != (byte)0xff) {
+                byte[] s = Arrays.copyOf(prefix, i + 1);
+                s[i]++;
+                return s;
+            }
+        }
+        return null;
+    }
+}
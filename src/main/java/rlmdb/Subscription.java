@@ -0,0 +1,122 @@
+package rlmdb;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fusesource.lmdbjni.Constants.string;
+
+// streams the operations of the log from a position on to a listener, on a thread of its own.
+// delivery is at least once per log record: a subscription ended part way through a record
+// delivers all of it again when resumed from getPosition() + 1
+public class Subscription implements Runnable, Closeable {
+
+    private static final Logger logger = Logger.getLogger(Subscription.class);
+
+    private static final int BULK_READ_ENTRIES = 64;
+
+    private final Env env;
+    private final ChangeListener listener;
+    private final LogWatcher watcher;
+    private final Thread thread;
+
+    private volatile long position;
+    private volatile boolean running = true;
+    private volatile Exception failure;
+
+    Subscription(Env env, long fromPosition, ChangeListener listener, String name) throws Exception {
+        this.env = env;
+        this.listener = listener;
+        position = fromPosition - 1;
+        watcher = new LogWatcher(env.curator);
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        long seen = -1;
+        try {
+            while(running) {
+                long version = watcher.awaitChange(seen, env.getReplayPollInterval());
+                deliver(version == seen ? watcher.read(position + 1) : watcher.current(position + 1));
+                seen = version;
+            }
+        } catch(InterruptedException ie) {
+            return;
+        } catch(Exception e) {
+            if(!running) return;
+            failure = e;
+            running = false;
+            logger.warn("subscription ended at position " + position, e);
+        } finally {
+            try { watcher.close(); } catch (IOException e) { logger.warn("", e); }
+        }
+    }
+
+    private void deliver(List<LogRecord> log) throws Exception {
+        List<LogRecord> pending = new ArrayList<>();
+        for(LogRecord record: log) if(record.position > position) pending.add(record);
+        if(pending.isEmpty()) return;
+        long truncated = env.readPosition(Env.LOG_TRUNCATED_PATH);
+        if(position < truncated)
+            throw new IllegalStateException("log truncated up to position " + truncated + " past the subscription at position " + position);
+        try(LogReader reader = new LogReader(env.bookkeeper, pending.iterator(), env.getReplayPrefetch(), env.getReplayPrefetchBytes())) {
+            LogReader.Ledger ledger;
+            while(running && (ledger = reader.next()) != null) try {
+                deliver(ledger.record, ledger.ops);
+                if(ledger.isBulk()) {
+                    long last = ledger.lh.getLastAddConfirmed();
+                    for(long next = 1; running && next <= last; next += BULK_READ_ENTRIES)
+                        deliver(ledger.record, Replayer.read(ledger.lh, next, Math.min(last, next + BULK_READ_ENTRIES - 1)));
+                }
+                if(running) position = ledger.record.position;
+            } finally {
+                reader.done(ledger);
+            }
+        }
+    }
+
+    private void deliver(LogRecord record, List<Batch.Op> ops) throws Exception {
+        for(Batch.Op op: ops) {
+            if(op.type == Batch.TXN) continue;
+            if(op.type == Batch.DROP) {
+                listener.onChange(new Change(Change.Type.DROP, string(op.key), null, null, record.ledgerId, record.position));
+                continue;
+            }
+            String database = env.databaseName(op.db);
+            if(database == null) continue;
+            listener.onChange(new Change(op.type == Batch.DEL ? Change.Type.DELETE : Change.Type.PUT, database, op.key, op.value, record.ledgerId, record.position));
+        }
+    }
+
+    // the last log position delivered in full
+    public long getPosition() {
+        return position;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // what ended the subscription, a listener exception or a truncated log, or null
+    public Exception getFailure() {
+        return failure;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        if(thread != Thread.currentThread())
+            try { thread.join(); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+        env.unsubscribe(this);
+    }
+}
@@ -0,0 +1,9 @@
+package rlmdb;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+
+public interface ValueVisitor<T> {
+
+    // value points into the memory map and is only valid while the read transaction is open
+    T visit(DirectBuffer value);
+}
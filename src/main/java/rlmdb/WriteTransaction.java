@@ -1,36 +1,313 @@
 package rlmdb;
 
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.bookkeeper.client.AsyncCallback;
 import org.apache.bookkeeper.client.BKException;
 import org.apache.bookkeeper.client.LedgerHandle;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 public class WriteTransaction extends Transaction {
 
     private final LedgerHandle lh;
+    private final List<byte[]> entries;
+    private final int maxPendingAdds;
+    private final Semaphore pendingAdds;
+    private final Batch batch;
+    private final int batchSize;
+    private final boolean compress;
+    private final boolean bulk;
+    // copies of the written keys and values, kept only for transactions reading their own writes
+    private final NavigableMap<byte[], byte[]> writes;
+    // the entries a direct ledger logged while the leader was caught up, kept out of the pool until commit.
+    // they are decoded for the leader's local apply only if it is still caught up by then. an aborted ledger's are
+    // left to the gc, bookkeeper may still be sending them
+    private final List<byte[]> logged;
+    private int[] loggedLengths;
+    private boolean retain;
+
+    static final byte[] TOMBSTONE = new byte[0];
+
+    private volatile int rc = BKException.Code.OK;
+    private volatile long position = -1;
+    private long bytes = 0;
+    // one add at a time is timed, which keeps the add path free of allocations
+    private long adds = 0;
+    private volatile long sampledEntry = -1;
+    private long sampledStart;
+    private boolean open = true;
+
+    private final AsyncCallback.AddCallback addCallback = new AsyncCallback.AddCallback() {
+        @Override
+        public void addComplete(int rc, LedgerHandle lh, long entryId, Object ctx) {
+            if(rc != BKException.Code.OK) WriteTransaction.this.rc = rc;
+            else if(entryId == sampledEntry) {
+                env.metrics.add.record(System.nanoTime() - sampledStart);
+                sampledEntry = -1;
+            }
+            if(ctx != null) env.buffers.release((byte[])ctx);
+            pendingAdds.release();
+        }
+    };
 
     public WriteTransaction(final Env env) {
+        this(env, false, true);
+    }
+
+    // bulk transactions always get their own ledger, keep no write set and are applied by replay on every node.
+    // group committed and forwarded transactions buffer their entries until commit
+    WriteTransaction(final Env env, boolean bulk, boolean readOwnWrites) {
         super(env);
-        lh = env.createLedger();
+        this.bulk = bulk;
+        writes = readOwnWrites && !bulk ? new TreeMap<byte[], byte[]>(UnsignedBytes.lexicographicalComparator()) : null;
+        maxPendingAdds = env.getMaxPendingAdds();
+        pendingAdds = new Semaphore(maxPendingAdds);
+        batchSize = env.getBatchSize();
+        compress = env.getCompressBatches();
+        if(bulk || (env.groupCommitter == null && (env.leader() || env.forwarder == null))) {
+            lh = env.createLedger();
+            entries = null;
+            logged = new ArrayList<>();
+            loggedLengths = new int[4];
+            retain = !bulk;
+            batch = new Batch(env.buffers.acquire(batchSize));
+        } else {
+            if(!env.leader() && env.forwarder == null) throw new NotLeaderException();
+            lh = null;
+            entries = new ArrayList<>();
+            logged = null;
+            retain = false;
+            batch = new Batch();
+        }
+    }
+
+    void put(byte[] db, byte[] key, byte[] value) throws BKException, InterruptedException {
+        batch.put(db, key, value);
+        if(writes != null) writes.put(Bytes.concat(db, key), value.clone());
+        if(batch.size() >= batchSize) flush();
+    }
+
+    void append(byte[] db, byte[] key, byte[] value) throws BKException, InterruptedException {
+        batch.append(db, key, value);
+        if(batch.size() >= batchSize) flush();
+    }
+
+    void delete(byte[] db, byte[] key) throws BKException, InterruptedException {
+        batch.delete(db, key);
+        if(writes != null) writes.put(Bytes.concat(db, key), TOMBSTONE);
+        if(batch.size() >= batchSize) flush();
+    }
+
+    // dropped on every node by replay, so only for transactions without a write set
+    void drop(byte[] db, byte[] name) throws BKException, InterruptedException {
+        batch.drop(db, name);
+        if(batch.size() >= batchSize) flush();
+    }
+
+    // encoded straight from the buffers, only the write set keeps a copy
+    void put(byte[] db, ByteBuffer key, ByteBuffer value) throws BKException, InterruptedException {
+        batch.put(db, key, value);
+        if(writes != null) writes.put(Bytes.concat(db, bytes(key)), bytes(value));
+        if(batch.size() >= batchSize) flush();
+    }
+
+    void delete(byte[] db, ByteBuffer key) throws BKException, InterruptedException {
+        batch.delete(db, key);
+        if(writes != null) writes.put(Bytes.concat(db, bytes(key)), TOMBSTONE);
+        if(batch.size() >= batchSize) flush();
+    }
+
+    private static byte[] bytes(ByteBuffer b) {
+        byte[] bytes = new byte[b.remaining()];
+        b.duplicate().get(bytes);
+        return bytes;
+    }
+
+    // the value written by this transaction, TOMBSTONE when deleted or null when untouched
+    byte[] get(byte[] db, byte[] key) {
+        if(writes == null) throw new IllegalStateException("write transaction not reading its own writes, see Env.createWriteTransaction(boolean)");
+        return writes.get(Bytes.concat(db, key));
     }
 
-    public void add(byte[] data) throws BKException, InterruptedException {
-        lh.addEntry(data);
+    // a direct ledger gets the batch buffer itself, or a pooled one holding the compressed entry,
+    // and the batch goes on in a fresh buffer from the pool
+    private void flush() throws BKException, InterruptedException {
+        if(batch.isEmpty()) return;
+        if(lh == null) {
+            byte[] entry = batch.toEntry(compress);
+            bytes += entry.length;
+            entries.add(entry);
+            batch.reset();
+            return;
+        }
+        // a leader behind its log leaves the ledger to replay anyway
+        if(retain && !env.caughtUp()) retain = false;
+        byte[] entry = null;
+        int length = -1;
+        if(compress) {
+            entry = env.buffers.acquire(batch.maxCompressedSize());
+            length = batch.compress(entry);
+            if(length < 0) env.buffers.release(entry);
+        }
+        if(length < 0) {
+            entry = batch.buffer();
+            length = batch.seal();
+            batch.reset(env.buffers.acquire(batchSize));
+        } else batch.reset();
+        add(entry, length);
+    }
+
+    private void add(byte[] data, int length) throws BKException, InterruptedException {
+        if(rc != BKException.Code.OK) {
+            env.buffers.release(data);
+            throw BKException.create(rc);
+        }
+        pendingAdds.acquire();
+        bytes += length;
+        // entry ids follow the order of the adds as this transaction is the only writer of its ledger
+        if(sampledEntry < 0) {
+            sampledStart = System.nanoTime();
+            sampledEntry = adds;
+        }
+        adds++;
+        if(retain) {
+            if(logged.size() == loggedLengths.length) loggedLengths = Arrays.copyOf(loggedLengths, loggedLengths.length * 2);
+            loggedLengths[logged.size()] = length;
+            logged.add(data);
+        }
+        lh.asyncAddEntry(data, 0, length, addCallback, retain ? null : data);
     }
 
     @Override
     public void close() {
-        abort();
+        if(open) abort();
     }
 
     @Override
     public void commit() {
-        if (lh == null) return;
-        env.commitLedger(lh);
+        if(!open) return;
+        open = false;
+        try {
+            batch.commit();
+            flush();
+        } catch(Exception e) {
+            if(lh != null) env.abortLedger(lh);
+            if(e instanceof InterruptedException) Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            if(lh != null) env.buffers.release(batch.buffer());
+        }
+        if(lh == null) {
+            try {
+                position = env.commitEntries(entries).get(env.getCommitTimeout(), TimeUnit.MILLISECONDS);
+                committed();
+            } catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ie);
+            } catch(ExecutionException ee) {
+                if(ee.getCause() instanceof RuntimeException) throw (RuntimeException)ee.getCause();
+                throw new RuntimeException(ee.getCause());
+            } catch(TimeoutException te) {
+                throw new CommitOutcomeUnknownException("no commit outcome after " + env.getCommitTimeout() + "ms", te);
+            }
+            return;
+        }
+        try {
+            if(!pendingAdds.tryAcquire(maxPendingAdds, env.getCommitTimeout(), TimeUnit.MILLISECONDS))
+                throw new TimeoutException("entries not acknowledged within " + env.getCommitTimeout() + "ms");
+            pendingAdds.release(maxPendingAdds);
+            if(rc != BKException.Code.OK) throw BKException.create(rc);
+        } catch(Exception e) {
+            env.abortLedger(lh);
+            if(e instanceof InterruptedException) Thread.currentThread().interrupt();
+            throw new RuntimeException("commit problem. ledger with id " + lh.getId() + " aborted after failed entry writes: " + e.getMessage(), e);
+        }
+        List<Batch.Op> ops = null;
+        if(retain && env.caughtUp()) {
+            ops = new ArrayList<>();
+            for(int i = 0; i < logged.size(); i++) ops.addAll(Batch.decode(logged.get(i), loggedLengths[i]));
+        }
+        // every add is acknowledged, so the pool may have the buffers back
+        for(byte[] entry: logged) env.buffers.release(entry);
+        logged.clear();
+        position = env.commitLedger(lh, ops);
+        committed();
+    }
+
+    private void committed() {
+        env.metrics.committedTransactions.incrementAndGet();
+        env.metrics.transactionBytes.record(bytes);
+    }
+
+    // the log position of the committed transaction, to be waited for by reads on other nodes. -1 until committed
+    public long getPosition() {
+        return position;
+    }
+
+    public ListenableFuture<Long> commitAsync() {
+        if(!open) return Futures.immediateFuture(position);
+        if(lh == null) {
+            open = false;
+            batch.commit();
+            byte[] entry = batch.toEntry(compress);
+            bytes += entry.length;
+            entries.add(entry);
+            batch.reset();
+            ListenableFuture<Long> f = env.commitEntries(entries);
+            Futures.addCallback(f, new FutureCallback<Long>() {
+                @Override
+                public void onSuccess(Long committed) {
+                    position = committed;
+                    committed();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {}
+            });
+            return f;
+        }
+        return env.commitExecutor.submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                commit();
+                return position;
+            }
+        });
+    }
+
+    // the operations of buffered or forwarded entries, decoded on the leader for its local apply
+    static List<Batch.Op> ops(List<byte[]> entries) {
+        List<Batch.Op> ops = new ArrayList<>();
+        for(byte[] entry: entries)
+            for(Batch.Op op: Batch.decode(entry)) {
+                if(op.type != Batch.PUT && op.type != Batch.DEL && op.type != Batch.TXN) throw new IllegalArgumentException("operation " + op.type + " cannot be forwarded");
+                ops.add(op);
+            }
+        return ops;
     }
 
     @Override
     public void abort() {
-        if (lh == null) return;
-        env.abortLedger(lh);
+        if(!open) return;
+        open = false;
+        if(lh != null) {
+            env.buffers.release(batch.buffer());
+            env.abortLedger(lh);
+        }
     }
 
     @Override
@@ -38,4 +315,3 @@ public class WriteTransaction extends Transaction {
         return false;
     }
 }
-
@@ -0,0 +1,147 @@
+package rlmdb;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchTest {
+
+    private static final byte[] DB = new byte[]{0, 0, 0, 7};
+
+    @Test
+    public void roundTripsEveryOperation() {
+        Batch batch = new Batch();
+        batch.put(DB, bytes("k1"), bytes("v1"));
+        batch.append(DB, bytes("k2"), bytes("v2"));
+        batch.delete(DB, bytes("k3"));
+        batch.put(DB, ByteBuffer.wrap(bytes("k4")), ByteBuffer.wrap(bytes("v4")));
+        batch.delete(DB, ByteBuffer.wrap(bytes("k5")));
+        batch.commit();
+        batch.drop(DB, bytes("name"));
+        assertEquals(7, batch.count());
+
+        List<Batch.Op> ops = Batch.decode(batch.toEntry(false));
+        assertEquals(7, ops.size());
+        assertOp(ops.get(0), Batch.PUT, "k1", "v1");
+        assertOp(ops.get(1), Batch.APPEND, "k2", "v2");
+        assertOp(ops.get(2), Batch.DEL, "k3", null);
+        assertOp(ops.get(3), Batch.PUT, "k4", "v4");
+        assertOp(ops.get(4), Batch.DEL, "k5", null);
+        assertEquals(Batch.TXN, ops.get(5).type);
+        assertOp(ops.get(6), Batch.DROP, "name", null);
+    }
+
+    @Test
+    public void longKeysAndEmptyValues() {
+        byte[] key = new byte[300000];
+        new Random(1).nextBytes(key);
+        Batch batch = new Batch();
+        batch.put(DB, key, new byte[0]);
+        batch.put(DB, new byte[]{1}, new byte[0]);
+        batch.put(DB, ByteBuffer.wrap(key), ByteBuffer.allocate(0));
+
+        List<Batch.Op> ops = Batch.decode(batch.toEntry(false));
+        assertEquals(3, ops.size());
+        assertArrayEquals(key, ops.get(0).key);
+        assertEquals(0, ops.get(0).value.length);
+        assertArrayEquals(new byte[]{1}, ops.get(1).key);
+        assertEquals(0, ops.get(1).value.length);
+        assertArrayEquals(key, ops.get(2).key);
+        assertEquals(0, ops.get(2).value.length);
+    }
+
+    @Test
+    public void directByteBuffersKeepTheirPosition() {
+        ByteBuffer key = ByteBuffer.allocateDirect(8);
+        key.put(bytes("xxkey"));
+        key.flip();
+        key.position(2);
+        Batch batch = new Batch();
+        batch.put(DB, key, ByteBuffer.wrap(bytes("v")));
+        assertEquals(2, key.position());
+        assertOp(Batch.decode(batch.toEntry(false)).get(0), Batch.PUT, "key", "v");
+    }
+
+    @Test
+    public void compressesRepetitiveBatches() {
+        Batch batch = new Batch();
+        for(int i = 0; i < 1000; i++) batch.put(DB, bytes("key" + i), bytes("the same value over and over"));
+        byte[] entry = batch.toEntry(true);
+        assertEquals(Batch.FLAG_LZ4, entry[1]);
+        assertTrue(entry.length < batch.size());
+
+        List<Batch.Op> ops = Batch.decode(entry);
+        assertEquals(1000, ops.size());
+        assertOp(ops.get(999), Batch.PUT, "key999", "the same value over and over");
+    }
+
+    @Test
+    public void keepsIncompressibleBatchesAsTheyAre() {
+        byte[] value = new byte[4096];
+        new Random(2).nextBytes(value);
+        Batch batch = new Batch();
+        batch.put(DB, bytes("k"), value);
+        assertEquals(-1, batch.compress(new byte[batch.maxCompressedSize()]));
+
+        byte[] entry = batch.toEntry(true);
+        assertEquals(0, entry[1]);
+        assertEquals(batch.size(), entry.length);
+        assertArrayEquals(value, Batch.decode(entry).get(0).value);
+    }
+
+    @Test
+    public void decodesThePrefixOfALargerBuffer() {
+        Batch batch = new Batch(new byte[1024]);
+        batch.put(DB, bytes("k"), bytes("v"));
+        int length = batch.seal();
+        byte[] buffer = batch.buffer();
+        Arrays.fill(buffer, length, buffer.length, Batch.PUT);
+
+        List<Batch.Op> ops = Batch.decode(buffer, length);
+        assertEquals(1, ops.size());
+        assertOp(ops.get(0), Batch.PUT, "k", "v");
+    }
+
+    @Test
+    public void reusesTheBufferAfterReset() {
+        Batch batch = new Batch();
+        batch.put(DB, bytes("k1"), bytes("v1"));
+        batch.reset(new byte[16]);
+        assertTrue(batch.isEmpty());
+        batch.delete(DB, bytes("k2"));
+
+        List<Batch.Op> ops = Batch.decode(batch.toEntry(false));
+        assertEquals(1, ops.size());
+        assertOp(ops.get(0), Batch.DEL, "k2", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersions() {
+        Batch.decode(new byte[]{0x02, 0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownOperations() {
+        Batch.decode(new byte[]{Batch.VERSION, 0, 0x7f});
+    }
+
+    private static void assertOp(Batch.Op op, byte type, String key, String value) {
+        assertEquals(type, op.type);
+        assertArrayEquals(DB, op.db);
+        assertArrayEquals(bytes(key), op.key);
+        if(value == null) assertNull(op.value);
+        else assertArrayEquals(bytes(value), op.value);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes();
+    }
+}
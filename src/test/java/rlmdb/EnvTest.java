@@ -1,4 +1,64 @@
 package rlmdb;
 
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.fusesource.lmdbjni.Constants.bytes;
+import static org.fusesource.lmdbjni.Constants.string;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 public class EnvTest {
+
+    private LocalCluster cluster;
+
+    @BeforeClass
+    public static void quiet() {
+        LogManager.getRootLogger().setLevel(Level.WARN);
+    }
+
+    @Before
+    public void start() throws Exception {
+        cluster = new LocalCluster(3, 28000).setBookieProperty("journalMaxGroupWaitMSec", "1").start();
+    }
+
+    @After
+    public void stop() {
+        cluster.close();
+    }
+
+    // the watermark in zookeeper is reset to nothing processed, so only the position in __rlmdb_meta__ can skip the replay
+    @Test
+    public void restartResumesFromTheAppliedPosition() throws Exception {
+        Env leader = cluster.leader();
+        Database db = leader.openDatabase("t");
+        long position = -1;
+        for (int i = 0; i < 10; i++) position = commit(leader, db, "k" + i);
+
+        Env follower = cluster.followers().get(0);
+        int id = (int) follower.getId();
+        assertTrue(follower.awaitPosition(position, 30, TimeUnit.SECONDS));
+        cluster.stop(id);
+        leader.curator.setData().forPath(Env.LOG_REMOVED_PATH + "/" + id, new byte[0]);
+        position = commit(leader, db, "k10");
+
+        follower = cluster.start(id);
+        assertEquals(position, follower.getAppliedPosition());
+        assertEquals(1, follower.metrics.getReplayedRecords());
+        Database replica = follower.openDatabase("t");
+        for (int i = 0; i <= 10; i++) assertEquals("v" + i, string(replica.get(bytes("k" + i))));
+    }
+
+    private static long commit(Env env, Database db, String key) throws Exception {
+        WriteTransaction tx = env.createWriteTransaction(false);
+        db.put(tx, bytes(key), bytes("v" + key.substring(1)));
+        tx.commit();
+        return tx.getPosition();
+    }
 }
@@ -0,0 +1,123 @@
+package rlmdb;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fusesource.lmdbjni.Constants.bytes;
+import static org.fusesource.lmdbjni.Constants.string;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ForwardingTest {
+
+    private static final int WRITERS = 4;
+    private static final int WRITES = 20;
+
+    private LocalCluster cluster;
+
+    @BeforeClass
+    public static void quiet() {
+        LogManager.getRootLogger().setLevel(Level.WARN);
+    }
+
+    @Before
+    public void start() throws Exception {
+        cluster = new LocalCluster(3, 27000).setBookieProperty("journalMaxGroupWaitMSec", "1").start();
+    }
+
+    @After
+    public void stop() {
+        cluster.close();
+    }
+
+    // every forwarded write is applied at most once, and exactly once when its commit succeeded,
+    // however it went through the leader change
+    @Test
+    public void forwardedWritesSurviveLosingTheLeader() throws Exception {
+        Env leader = cluster.leader();
+        final Env follower = cluster.followers().get(0);
+        final Database db = follower.openDatabase("t");
+
+        final Map<String, AtomicInteger> applied = new ConcurrentHashMap<>();
+        Subscription subscription = follower.subscribe(0, new ChangeListener() {
+            @Override
+            public void onChange(Change change) {
+                if (change.getType() != Change.Type.PUT) return;
+                AtomicInteger count = applied.get(string(change.getKey()));
+                if (count == null) applied.put(string(change.getKey()), count = new AtomicInteger());
+                count.incrementAndGet();
+            }
+        });
+
+        final Map<String, String> outcomes = new ConcurrentHashMap<>();
+        ExecutorService writers = Executors.newFixedThreadPool(WRITERS);
+        List<Future<?>> done = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            done.add(writers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < WRITES; i++) {
+                        String key = writer + "-" + i;
+                        try (WriteTransaction tx = follower.createWriteTransaction(false)) {
+                            db.put(tx, bytes(key), bytes(key));
+                            tx.commit();
+                            outcomes.put(key, "ok");
+                        } catch (NotLeaderException e) {
+                            outcomes.put(key, "not leader");
+                        } catch (RuntimeException e) {
+                            outcomes.put(key, "failed");
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        Thread.sleep(300);
+        cluster.stop((int) leader.getId());
+        for (Future<?> f : done) f.get(5, TimeUnit.MINUTES);
+        writers.shutdown();
+
+        Env next = cluster.awaitLeader(30000);
+        assertNotEquals(leader.getId(), next.getId());
+        WriteTransaction last = follower.createWriteTransaction(false);
+        db.put(last, bytes("last"), bytes("last"));
+        last.commit();
+        assertTrue(follower.awaitPosition(last.getPosition(), 30, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!applied.containsKey("last") && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        subscription.close();
+        assertTrue(applied.containsKey("last"));
+
+        int ok = 0;
+        for (Map.Entry<String, String> outcome : outcomes.entrySet()) {
+            AtomicInteger count = applied.get(outcome.getKey());
+            int times = count == null ? 0 : count.get();
+            assertTrue(outcome.getKey() + " applied " + times + " times", times <= 1);
+            if (outcome.getValue().equals("ok")) {
+                assertEquals(outcome.getKey(), 1, times);
+                assertEquals(outcome.getKey(), string(db.get(bytes(outcome.getKey()))));
+                ok++;
+            }
+            if (outcome.getValue().equals("not leader")) assertEquals(outcome.getKey(), 0, times);
+        }
+        assertEquals(WRITERS * WRITES, outcomes.size());
+        assertTrue(ok > 0);
+    }
+}
@@ -0,0 +1,103 @@
+package rlmdb;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.fusesource.lmdbjni.Constants.bytes;
+import static org.fusesource.lmdbjni.Constants.string;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GroupCommitTest {
+
+    private static final int WRITERS = 4;
+    private static final int ROUNDS = 20;
+    private static final int IN_FLIGHT = 5;
+
+    private LocalCluster cluster;
+
+    @BeforeClass
+    public static void quiet() {
+        LogManager.getRootLogger().setLevel(Level.WARN);
+    }
+
+    @Before
+    public void start() throws Exception {
+        cluster = new LocalCluster(3, 27500).setBookieProperty("journalMaxGroupWaitMSec", "1").start();
+    }
+
+    @After
+    public void stop() {
+        cluster.close();
+    }
+
+    // transactions waiting in the window of a committer being replaced or switched off are committed, not dropped
+    @Test
+    public void switchingGroupCommitLosesNoWrites() throws Exception {
+        final Env leader = cluster.leader();
+        leader.setCommitTimeout(30000);
+        leader.setGroupCommit(5, 1 << 20, 100);
+        final Database db = leader.openDatabase("t");
+
+        ExecutorService writers = Executors.newFixedThreadPool(WRITERS);
+        List<Future<Long>> done = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            done.add(writers.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long last = -1;
+                    for (int round = 0; round < ROUNDS; round++) {
+                        List<ListenableFuture<Long>> commits = new ArrayList<>();
+                        for (int i = 0; i < IN_FLIGHT; i++) {
+                            String key = writer + "-" + round + "-" + i;
+                            WriteTransaction tx = leader.createWriteTransaction(false);
+                            db.put(tx, bytes(key), bytes(key));
+                            commits.add(tx.commitAsync());
+                        }
+                        for (ListenableFuture<Long> commit : commits) last = Math.max(last, commit.get(30, TimeUnit.SECONDS));
+                    }
+                    return last;
+                }
+            }));
+        }
+        boolean on = true;
+        while (!allDone(done)) {
+            Thread.sleep(20);
+            on = !on;
+            leader.setGroupCommit(on ? 5 : 0, 1 << 20, 100);
+        }
+        writers.shutdown();
+        long last = -1;
+        for (Future<Long> f : done) last = Math.max(last, f.get());
+
+        Env follower = cluster.followers().get(0);
+        assertTrue(follower.awaitPosition(last, 30, TimeUnit.SECONDS));
+        Database replica = follower.openDatabase("t");
+        for (int w = 0; w < WRITERS; w++)
+            for (int round = 0; round < ROUNDS; round++)
+                for (int i = 0; i < IN_FLIGHT; i++) {
+                    String key = w + "-" + round + "-" + i;
+                    assertEquals(key, string(db.get(bytes(key))));
+                    assertEquals(key, string(replica.get(bytes(key))));
+                }
+    }
+
+    private static boolean allDone(List<Future<Long>> futures) {
+        for (Future<Long> f : futures) if (!f.isDone()) return false;
+        return true;
+    }
+}
@@ -0,0 +1,76 @@
+package rlmdb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for(int v = 0; v < 16; v++) {
+            assertEquals(v, Histogram.index(v));
+            assertEquals(v, Histogram.highest(v));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        int last = Histogram.index(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, Histogram.highest(last));
+        for(int i = 0; i < last; i++) {
+            long highest = Histogram.highest(i);
+            assertEquals(i, Histogram.index(highest));
+            assertEquals(i + 1, Histogram.index(highest + 1));
+        }
+    }
+
+    @Test
+    public void bucketsAreWithinAnEighth() {
+        for(int i = 9; i <= Histogram.index(Long.MAX_VALUE); i++) {
+            long lowest = Histogram.highest(i - 1) + 1;
+            long width = Histogram.highest(i) - lowest + 1;
+            assertTrue("bucket " + i, width * 8 <= lowest);
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.percentile(0.5));
+        for(int v = 1; v <= 1000; v++) h.record(v);
+        assertEquals(1000, h.getCount());
+        assertEquals(500.5, h.getMean(), 0);
+        assertEquals(1000, h.getMax());
+        assertWithin(500, h.get50thPercentile());
+        assertWithin(900, h.get90thPercentile());
+        assertWithin(990, h.get99thPercentile());
+        assertEquals(1000, h.get999thPercentile());
+        assertEquals(1, h.percentile(0));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        Histogram h = new Histogram();
+        h.record(-5);
+        assertEquals(1, h.getCount());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.get50thPercentile());
+    }
+
+    @Test
+    public void reset() {
+        Histogram h = new Histogram();
+        h.record(123456789);
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.get99thPercentile());
+    }
+
+    // a percentile is the highest value of its bucket, so never below the exact one and at most an eighth above
+    private static void assertWithin(long exact, long percentile) {
+        assertTrue(percentile + " for " + exact, percentile >= exact && percentile <= exact + exact / 8);
+    }
+}
@@ -0,0 +1,189 @@
+package rlmdb;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// zookeeper, bookie and lmdb env of every node in one jvm, on loopback ports from basePort and a temp dir.
+// ports: zookeeper clients basePort + id, quorum + 100, election + 200, bookies + 300, write forwarding + 400
+public class LocalCluster implements Closeable {
+
+    private final int size;
+    private final int basePort;
+    private final File dir;
+    private final List<Env> nodes = new ArrayList<>();
+
+    private long mapSize = 1L << 30;
+    private long startTimeout = 60000;
+    private Set<EnvFlag> flags = EnumSet.noneOf(EnvFlag.class);
+    private final Properties bookieOverrides = new Properties();
+
+    public LocalCluster(int size, int basePort) throws Exception {
+        this.size = size;
+        this.basePort = basePort;
+        dir = Files.createTempDirectory("rlmdb-cluster").toFile();
+    }
+
+    public LocalCluster setMapSize(long bytes) {
+        mapSize = bytes;
+        return this;
+    }
+
+    public LocalCluster setFlags(Set<EnvFlag> flags) {
+        this.flags = flags;
+        return this;
+    }
+
+    public LocalCluster setStartTimeout(long millis) {
+        startTimeout = millis;
+        return this;
+    }
+
+    // e.g. journalMaxGroupWaitMSec, the bookie journal waits up to 200ms by default to group its fsyncs
+    public LocalCluster setBookieProperty(String key, String value) {
+        bookieOverrides.setProperty(key, value);
+        return this;
+    }
+
+    // the nodes are opened together as none of them gets a zookeeper quorum alone
+    public LocalCluster start() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(size);
+        try {
+            List<Future<Env>> opening = new ArrayList<>();
+            for (int i = 1; i <= size; i++) {
+                final int id = i;
+                opening.add(executor.submit(new Callable<Env>() {
+                    @Override
+                    public Env call() throws Exception {
+                        return open(id);
+                    }
+                }));
+            }
+            for (Future<Env> f : opening) nodes.add(f.get(startTimeout, TimeUnit.MILLISECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        awaitLeader(startTimeout);
+        for (Env env : nodes) awaitReady(env);
+        return this;
+    }
+
+    // closes a node and opens it again on its data, the others keep running
+    public Env restart(int id) throws Exception {
+        stop(id);
+        return start(id);
+    }
+
+    // closes a node, the others keep running. it is left out of leader() and followers() until started again
+    public void stop(int id) {
+        Env env = nodes.set(id - 1, null);
+        if (env != null) env.close();
+    }
+
+    // opens a stopped node again on its data
+    public Env start(int id) throws Exception {
+        if (node(id) != null) throw new IllegalStateException("node " + id + " is running");
+        Env env = open(id);
+        nodes.set(id - 1, env);
+        awaitReady(env);
+        return env;
+    }
+
+    private void awaitReady(Env env) throws InterruptedException {
+        if (!env.awaitReady(startTimeout, TimeUnit.MILLISECONDS))
+            throw new IllegalStateException("node " + env.getId() + " did not catch up within " + startTimeout + "ms");
+    }
+
+    private Env open(int id) throws Exception {
+        Env env = new Env(id);
+        env.setMapSize(mapSize);
+        env.setMaxDbs(64);
+        env.setWriteForwarding("127.0.0.1", basePort + 400 + id);
+        env.open(new File(dir, "node" + id).getCanonicalPath(), flags, zookeeper(id), bookie(id));
+        return env;
+    }
+
+    private Properties zookeeper(int id) {
+        Properties zk = new Properties();
+        zk.setProperty("dataDir", "data");
+        zk.setProperty("clientPort", Integer.toString(basePort + id));
+        zk.setProperty("maxClientCnxns", "0");
+        zk.setProperty("tickTime", "500");
+        zk.setProperty("initLimit", "10");
+        zk.setProperty("syncLimit", "5");
+        for (int i = 1; i <= size; i++)
+            zk.setProperty("server." + i, "127.0.0.1:" + (basePort + 100 + i) + ":" + (basePort + 200 + i));
+        return zk;
+    }
+
+    private Properties bookie(int id) {
+        Properties bk = new Properties();
+        bk.setProperty("bookiePort", Integer.toString(basePort + 300 + id));
+        bk.setProperty("allowLoopback", "true");
+        bk.setProperty("autoRecoveryDaemonEnabled", "false");
+        bk.setProperty("journalDirectory", "journal");
+        bk.setProperty("ledgerDirectories", "ledger");
+        bk.setProperty("zkServers", zkServers());
+        bk.setProperty("zkTimeout", "10000");
+        bk.putAll(bookieOverrides);
+        return bk;
+    }
+
+    private String zkServers() {
+        StringBuilder servers = new StringBuilder();
+        for (int i = 1; i <= size; i++) servers.append(i > 1 ? "," : "").append("127.0.0.1:").append(basePort + i);
+        return servers.toString();
+    }
+
+    public Env awaitLeader(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            for (Env env : nodes) if (env != null && env.leader()) return env;
+            Thread.sleep(50);
+        }
+        throw new IllegalStateException("no leader elected within " + timeoutMillis + "ms");
+    }
+
+    public Env leader() throws InterruptedException {
+        return awaitLeader(startTimeout);
+    }
+
+    public List<Env> followers() throws InterruptedException {
+        Env leader = leader();
+        List<Env> followers = new ArrayList<>();
+        for (Env env : nodes) if (env != null && env != leader) followers.add(env);
+        return followers;
+    }
+
+    // ids start at 1, null while stopped
+    public Env node(int id) {
+        return nodes.get(id - 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    @Override
+    public void close() {
+        for (Env env : nodes) if (env != null) try { env.close(); } catch (Exception e) {}
+        nodes.clear();
+        FileUtils.deleteQuietly(dir);
+    }
+}
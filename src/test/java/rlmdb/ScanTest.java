@@ -0,0 +1,126 @@
+package rlmdb;
+
+import org.fusesource.lmdbjni.Database;
+import org.fusesource.lmdbjni.Entry;
+import org.fusesource.lmdbjni.Env;
+import org.fusesource.lmdbjni.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ScanTest {
+
+    private static final byte[][] KEYS = new byte[][]{
+            {0x01}, {0x01, 0x00}, {0x01, (byte)0xff}, {0x02}, {(byte)0xff}, {(byte)0xff, (byte)0xff}, {(byte)0xff, (byte)0xff, 0x01}};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Env env;
+    private Database db;
+    private Transaction tx;
+
+    @Before
+    public void open() throws Exception {
+        env = new Env();
+        env.open(folder.getRoot().getCanonicalPath());
+        db = env.openDatabase();
+        for(byte[] key : KEYS) db.put(key, key);
+        tx = env.createReadTransaction();
+    }
+
+    @After
+    public void close() {
+        tx.close();
+        db.close();
+        env.close();
+    }
+
+    @Test
+    public void openEnds() {
+        assertKeys(scan(null, null, false), 0, 1, 2, 3, 4, 5, 6);
+        assertKeys(scan(null, null, true), 6, 5, 4, 3, 2, 1, 0);
+        assertKeys(scan(KEYS[3], null, false), 3, 4, 5, 6);
+        assertKeys(scan(KEYS[3], null, true), 6, 5, 4, 3);
+        assertKeys(scan(null, KEYS[3], false), 0, 1, 2);
+        assertKeys(scan(null, KEYS[3], true), 2, 1, 0);
+    }
+
+    @Test
+    public void boundsBetweenKeys() {
+        byte[] from = {0x01, 0x00, 0x00};
+        byte[] to = {0x03};
+        assertKeys(scan(from, to, false), 2, 3);
+        assertKeys(scan(from, to, true), 3, 2);
+    }
+
+    @Test
+    public void boundsPastEveryKey() {
+        byte[] after = {(byte)0xff, (byte)0xff, 0x02};
+        assertKeys(scan(after, null, false));
+        assertKeys(scan(after, null, true));
+        assertKeys(scan(KEYS[4], after, true), 6, 5, 4);
+        assertKeys(scan(new byte[]{0x00}, new byte[]{0x00, 0x01}, true));
+    }
+
+    @Test
+    public void emptyRange() {
+        assertKeys(scan(KEYS[3], KEYS[3], false));
+        assertKeys(scan(KEYS[3], KEYS[3], true));
+        assertKeys(scan(KEYS[4], KEYS[3], false));
+        assertKeys(scan(KEYS[4], KEYS[3], true));
+    }
+
+    @Test
+    public void prefixes() {
+        assertArrayEquals(KEYS[3], Scan.successor(KEYS[2]));
+        assertArrayEquals(new byte[]{0x01, 0x01}, Scan.successor(KEYS[1]));
+        assertKeys(scan(KEYS[0], Scan.successor(KEYS[0]), false), 0, 1, 2);
+        assertKeys(scan(KEYS[0], Scan.successor(KEYS[0]), true), 2, 1, 0);
+    }
+
+    @Test
+    public void prefixOfOnlyMaxBytes() {
+        assertNull(Scan.successor(KEYS[5]));
+        assertNull(Scan.successor(new byte[0]));
+        assertKeys(scan(KEYS[5], Scan.successor(KEYS[5]), false), 5, 6);
+        assertKeys(scan(KEYS[5], Scan.successor(KEYS[5]), true), 6, 5);
+        assertKeys(scan(KEYS[4], Scan.successor(KEYS[4]), true), 6, 5, 4);
+    }
+
+    @Test
+    public void keysOnly() {
+        try(Scan scan = new Scan(db.bufferCursor(tx), KEYS[0], KEYS[1], false, true)) {
+            Entry e = scan.next();
+            assertArrayEquals(KEYS[0], e.getKey());
+            assertNull(e.getValue());
+        }
+    }
+
+    private Scan scan(byte[] from, byte[] to, boolean reverse) {
+        return new Scan(db.bufferCursor(tx), from, to, reverse, false);
+    }
+
+    private static void assertKeys(Scan scan, int... expected) {
+        List<byte[]> keys = new ArrayList<>();
+        try {
+            for(Entry e : scan) {
+                assertArrayEquals(e.getKey(), e.getValue());
+                keys.add(e.getKey());
+            }
+        } finally {
+            scan.close();
+        }
+        assertEquals(expected.length, keys.size());
+        for(int i = 0; i < expected.length; i++) assertArrayEquals(KEYS[expected[i]], keys.get(i));
+    }
+}